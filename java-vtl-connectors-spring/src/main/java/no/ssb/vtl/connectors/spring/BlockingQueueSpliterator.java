@@ -24,29 +24,25 @@ import no.ssb.vtl.model.DataPoint;
 
 import java.util.Spliterator;
 import java.util.Spliterators;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 /**
  * Created by hadrien on 21/06/2017.
+ * <p>
+ * The data points are read from a {@link Handoff}, in batches when possible. A failure of the
+ * producer is rethrown once the data points handed over before it are read.
  */
 class BlockingQueueSpliterator extends Spliterators.AbstractSpliterator<DataPoint> {
 
-    // End of stream marker.
-    public static final DataPoint EOS = DataPoint.create(0);
-
-    private final BlockingQueue<DataPoint> queue;
+    private final Handoff handoff;
     private final Future<?> future;
-    private final AtomicReference<Exception> exception;
     private volatile boolean hasMore = true;
 
-    public BlockingQueueSpliterator(BlockingQueue<DataPoint> queue, Future<?> future, AtomicReference<Exception> exception) {
+    public BlockingQueueSpliterator(Handoff handoff, Future<?> future) {
         super(Long.MAX_VALUE, Spliterator.IMMUTABLE);
-        this.queue = queue;
+        this.handoff = handoff;
         this.future = future;
-        this.exception = exception;
     }
 
     @Override
@@ -56,28 +52,28 @@ class BlockingQueueSpliterator extends Spliterators.AbstractSpliterator<DataPoin
 
         try {
 
-            DataPoint p = queue.take();
-            if (p == EOS) {
-                hasMore = false;
+            if (handoff.drainTo(action, 1) < 0) {
+                finish();
                 return false;
             }
 
-            action.accept(p);
-
         } catch (InterruptedException ie) {
             cancelAndThrow();
         }
         return true;
     }
 
-    private void cancelAndThrow() throws RuntimeException {
+    private void finish() throws RuntimeException {
         hasMore = false;
-        future.cancel(true);
-        Exception ex = this.exception.get();
+        Exception ex = handoff.getFailure();
         if (ex != null)
             throw new RuntimeException(ex);
-        else
-            throw new RuntimeException("stream interrupted");
+    }
+
+    private void cancelAndThrow() throws RuntimeException {
+        hasMore = false;
+        future.cancel(true);
+        throw new RuntimeException("stream interrupted");
     }
 
     @Override
@@ -85,11 +81,11 @@ class BlockingQueueSpliterator extends Spliterators.AbstractSpliterator<DataPoin
         try {
             if (!hasMore)
                 return;
-            hasMore = false;
 
-            DataPoint p;
-            while ((p = queue.take()) != EOS)
-                action.accept(p);
+            while (handoff.drainTo(action, Integer.MAX_VALUE) >= 0) {
+                // Keep draining.
+            }
+            finish();
 
         } catch (InterruptedException ie) {
             cancelAndThrow();
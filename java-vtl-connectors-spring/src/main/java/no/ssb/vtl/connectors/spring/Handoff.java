@@ -0,0 +1,364 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import no.ssb.vtl.model.DataPoint;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Transfers the data points from the thread reading the response (the producer) to the
+ * {@link BlockingQueueSpliterator} (the consumer).
+ * <p>
+ * There is always exactly one producer and one consumer. The stream ends with {@link #end()}, or
+ * with {@link #fail(Exception)} which any thread can call.
+ */
+abstract class Handoff {
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * Hand a data point over, waiting if the buffer is full.
+     */
+    abstract void put(DataPoint dataPoint) throws InterruptedException;
+
+    /**
+     * Hand the pending data points over and mark the end of the stream.
+     */
+    abstract void end() throws InterruptedException;
+
+    /**
+     * Pass up to <code>max</code> data points to the action, waiting for at least one.
+     *
+     * @return the number of data points passed, or -1 at the end of the stream
+     */
+    abstract int drainTo(Consumer<? super DataPoint> action, int max) throws InterruptedException;
+
+    /**
+     * End the stream with a failure, without waiting. The data points not read yet may be dropped.
+     * Only the first failure is kept.
+     */
+    final void fail(Exception cause) {
+        if (failure.compareAndSet(null, cause))
+            abort();
+    }
+
+    /**
+     * Returns the failure that ended the stream, or null.
+     */
+    final Exception getFailure() {
+        return failure.get();
+    }
+
+    /**
+     * Mark the end of the stream without waiting.
+     */
+    abstract void abort();
+
+    /**
+     * Chunks in a blocking queue.
+     * <p>
+     * The producer fills a chunk and puts it in the queue when it is full. A consumer that finds
+     * the queue empty reads the data points of the chunk being filled directly, so the data
+     * points already read from the response are never held back while the producer waits for
+     * the next ones. A partial chunk is also handed over as soon as the consumer waits for data.
+     */
+    static final class QueueHandoff extends Handoff {
+
+        // Number of data points per chunk.
+        static final int CHUNK_SIZE = 256;
+
+        // End of stream marker.
+        private static final Chunk EOS = new Chunk(-1);
+
+        private final BlockingQueue<Chunk> queue;
+        private volatile boolean consumerWaiting = false;
+
+        // The chunk the producer fills, replaced by the producer only.
+        private volatile Chunk pending = new Chunk(0);
+
+        // Accessed by the consumer only.
+        private Chunk chunk = null;
+        private int index = 0;
+        private long nextSequence = 0;
+
+        /**
+         * Create a handoff that buffers about <code>bufferSize</code> data points.
+         */
+        QueueHandoff(int bufferSize) {
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, bufferSize / CHUNK_SIZE));
+        }
+
+        @Override
+        void put(DataPoint dataPoint) throws InterruptedException {
+            Chunk current = pending;
+            int size = current.size;
+            current.dataPoints[size] = dataPoint;
+            // Volatile write, read before consumerWaiting so that the consumer sees it or is seen.
+            current.size = size + 1;
+            if (size + 1 == CHUNK_SIZE || consumerWaiting)
+                flush();
+        }
+
+        @Override
+        void end() throws InterruptedException {
+            flush();
+            queue.put(EOS);
+        }
+
+        @Override
+        void abort() {
+            // Make room for the marker, the consumer stops there anyway.
+            while (!queue.offer(EOS))
+                queue.poll();
+        }
+
+        private void flush() throws InterruptedException {
+            Chunk current = pending;
+            if (current.size == 0)
+                return;
+            pending = new Chunk(current.sequence + 1);
+            queue.put(current);
+        }
+
+        @Override
+        int drainTo(Consumer<? super DataPoint> action, int max) throws InterruptedException {
+            while (chunk == null || index == chunk.size) {
+                if (chunk == EOS)
+                    return -1;
+                Chunk next = queue.poll();
+                if (next == null) {
+                    int count = readPending(action, max);
+                    if (count > 0)
+                        return count;
+                    next = take();
+                    if (next == null)
+                        continue;
+                }
+                // Skip the data points already read from the pending chunk.
+                chunk = next;
+                index = next.taken;
+                nextSequence = next.sequence + 1;
+            }
+            int end = (int) Math.min((long) index + max, chunk.size);
+            int count = end - index;
+            while (index < end)
+                action.accept(chunk.dataPoints[index++]);
+            return count;
+        }
+
+        /**
+         * Read the data points of the chunk being filled if it is the next one.
+         */
+        private int readPending(Consumer<? super DataPoint> action, int max) {
+            Chunk current = pending;
+            if (current.sequence != nextSequence)
+                return 0;
+            int end = (int) Math.min((long) current.taken + max, current.size);
+            int count = end - current.taken;
+            while (current.taken < end)
+                action.accept(current.dataPoints[current.taken++]);
+            return count;
+        }
+
+        /**
+         * Wait for the next chunk.
+         *
+         * @return null if data points were added to the pending chunk in the meantime
+         */
+        private Chunk take() throws InterruptedException {
+            consumerWaiting = true;
+            try {
+                // The producer might have added a data point before seeing the flag.
+                Chunk current = pending;
+                if (current.sequence == nextSequence && current.size > current.taken)
+                    return null;
+                return queue.take();
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+
+        private static final class Chunk {
+
+            private final long sequence;
+            private final DataPoint[] dataPoints;
+
+            // Written by the producer only.
+            private volatile int size = 0;
+
+            // Number of data points the consumer read before the chunk was in the queue.
+            private int taken = 0;
+
+            private Chunk(long sequence) {
+                this.sequence = sequence;
+                this.dataPoints = sequence < 0 ? new DataPoint[0] : new DataPoint[CHUNK_SIZE];
+            }
+        }
+    }
+
+    /**
+     * A single producer, single consumer ring buffer.
+     * <p>
+     * The producer and the consumer publish their positions with ordered writes and never lock.
+     * A thread that has to wait (the producer on a full buffer, the consumer on an empty one)
+     * uses the {@link WaitStrategy}.
+     */
+    static final class RingBufferHandoff extends Handoff {
+
+        // Maximum number of data points read before the consumer publishes its position.
+        private static final int BATCH_SIZE = 256;
+
+        private final DataPoint[] buffer;
+        private final int mask;
+        private final WaitStrategy waitStrategy;
+
+        // Next position to write, written by the producer.
+        private final AtomicLong tail = new AtomicLong();
+        // Next position to read, written by the consumer.
+        private final AtomicLong head = new AtomicLong();
+        private volatile boolean ended = false;
+
+        // Last head seen by the producer.
+        private long cachedHead = 0;
+        // Last tail seen by the consumer.
+        private long cachedTail = 0;
+
+        /**
+         * Create a ring buffer of at least <code>bufferSize</code> data points.
+         */
+        RingBufferHandoff(int bufferSize, WaitStrategy waitStrategy) {
+            int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+            this.buffer = new DataPoint[capacity];
+            this.mask = capacity - 1;
+            this.waitStrategy = waitStrategy;
+        }
+
+        @Override
+        void put(DataPoint dataPoint) throws InterruptedException {
+            long position = tail.get();
+            int idle = 0;
+            while (position - cachedHead >= buffer.length) {
+                cachedHead = head.get();
+                if (position - cachedHead >= buffer.length)
+                    waitStrategy.idle(idle++);
+            }
+            buffer[(int) (position & mask)] = dataPoint;
+            tail.lazySet(position + 1);
+        }
+
+        @Override
+        void end() {
+            ended = true;
+        }
+
+        @Override
+        void abort() {
+            ended = true;
+        }
+
+        @Override
+        int drainTo(Consumer<? super DataPoint> action, int max) throws InterruptedException {
+            long position = head.get();
+            int idle = 0;
+            while (cachedTail == position) {
+                cachedTail = tail.get();
+                if (cachedTail != position)
+                    break;
+                // The tail is read again since it is published before the end.
+                if (ended) {
+                    cachedTail = tail.get();
+                    if (cachedTail == position)
+                        return -1;
+                    break;
+                }
+                waitStrategy.idle(idle++);
+            }
+
+            int count = (int) Math.min(cachedTail - position, Math.min(max, BATCH_SIZE));
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((position + i) & mask);
+                DataPoint dataPoint = buffer[index];
+                buffer[index] = null;
+                action.accept(dataPoint);
+            }
+            head.lazySet(position + count);
+            return count;
+        }
+    }
+
+    /**
+     * How a thread waits for the other side of a {@link RingBufferHandoff}.
+     */
+    enum WaitStrategy {
+
+        /**
+         * Busy spin: lowest latency, uses a whole core while waiting.
+         */
+        SPIN {
+            @Override
+            void idle(int iteration) throws InterruptedException {
+                checkInterrupted();
+            }
+        },
+
+        /**
+         * Yield to other threads between checks.
+         */
+        YIELD {
+            @Override
+            void idle(int iteration) throws InterruptedException {
+                checkInterrupted();
+                Thread.yield();
+            }
+        },
+
+        /**
+         * Spin and yield briefly, then park for short periods: the least CPU while waiting.
+         */
+        PARK {
+            @Override
+            void idle(int iteration) throws InterruptedException {
+                checkInterrupted();
+                if (iteration < 100) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+            }
+        };
+
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        abstract void idle(int iteration) throws InterruptedException;
+
+        private static void checkInterrupted() throws InterruptedException {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+}
@@ -21,26 +21,32 @@ package no.ssb.vtl.connectors.spring;
  */
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Queues;
 import no.ssb.vtl.connectors.Connector;
 import no.ssb.vtl.connectors.ConnectorException;
+import no.ssb.vtl.connectors.utils.Revalidatable;
+import no.ssb.vtl.connectors.utils.Validators;
+import no.ssb.vtl.connectors.utils.VirtualThreadExecutor;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
 import no.ssb.vtl.model.Filtering;
 import no.ssb.vtl.model.Ordering;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.util.Assert;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.ResponseExtractor;
@@ -52,18 +58,21 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -95,19 +104,39 @@ public class RestTemplateConnector implements Connector {
     private final AsyncTaskExecutor executorService;
     private final WrappedRestTemplate template;
     private final Integer bufferSize;
+    private final Transport transport;
 
     public RestTemplateConnector(RestTemplate template, Executor executorService) {
         this(template, new TaskExecutorAdapter(checkNotNull(executorService)));
     }
 
     public RestTemplateConnector(RestTemplate template, AsyncTaskExecutor executorService) {
-        this(template, executorService, null);
+        this(template, executorService, null, Transport.QUEUE);
     }
 
-    private RestTemplateConnector(RestTemplate template, AsyncTaskExecutor executorService, Integer bufferSize) {
+    /**
+     * Create a connector that hands the data points over with the given {@link Transport}.
+     */
+    public RestTemplateConnector(RestTemplate template, AsyncTaskExecutor executorService, Transport transport) {
+        this(template, executorService, null, transport);
+    }
+
+    /**
+     * Create a connector that reads the responses in virtual threads when the JDK supports them
+     * (see {@link VirtualThreadExecutor}), with at most <code>maxConcurrentStreams</code> streams
+     * read at the same time.
+     */
+    public static RestTemplateConnector withVirtualThreads(RestTemplate template, int maxConcurrentStreams) {
+        return new RestTemplateConnector(template,
+                VirtualThreadExecutor.create("rest-template-connector", maxConcurrentStreams));
+    }
+
+    private RestTemplateConnector(RestTemplate template, AsyncTaskExecutor executorService, Integer bufferSize,
+                                  Transport transport) {
         this.template = new WrappedRestTemplate(checkNotNull(template));
         this.executorService = checkNotNull(executorService);
         this.bufferSize = Optional.ofNullable(bufferSize).orElse(DEFAULT_BUFFER_SIZE);
+        this.transport = checkNotNull(transport);
     }
 
     @VisibleForTesting
@@ -121,24 +150,116 @@ public class RestTemplateConnector implements Connector {
     }
 
     private Stream<DataPoint> getData(URI uri) {
+        return getData(uri, headers -> {
+        });
+    }
 
-        // We wrap the blocking queue in a Spliterator and let another thread handle the
-        // connection and deserialization.
+    /**
+     * Create the callback of the data requests.
+     * <p>
+     * The Accept header lists the media types of the converters that can read the data. The
+     * binary ones (Smile, Arrow), if any, are moved first so that the server uses them when it can.
+     */
+    private RequestCallback createDataRequestCallback() {
+        RequestCallback callback = template.httpEntityCallback(null, DATAPOINT_STREAM_TYPE.getType());
+        return request -> {
+            callback.doWithRequest(request);
+            HttpHeaders headers = request.getHeaders();
+            headers.setAccept(preferBinary(headers.getAccept()));
+        };
+    }
+
+    /**
+     * Move the binary (Smile, Arrow) media types first, keeping the order otherwise.
+     */
+    @VisibleForTesting
+    static List<MediaType> preferBinary(List<MediaType> mediaTypes) {
+        List<MediaType> sorted = new ArrayList<>(mediaTypes);
+        sorted.sort(Comparator.comparing(mediaType -> !isBinary(mediaType)));
+        return sorted;
+    }
+
+    private static boolean isBinary(MediaType mediaType) {
+        String subtype = mediaType.getSubtype();
+        return subtype.endsWith("+smile") || subtype.equals("x-jackson-smile")
+                || subtype.equals("vnd.apache.arrow.stream");
+    }
+
+    /**
+     * Convert the validators of a response.
+     */
+    @VisibleForTesting
+    static Validators createValidators(HttpHeaders headers) {
+        long lastModified = headers.getLastModified();
+        return Validators.create(
+                headers.getETag(),
+                lastModified >= 0 ? Instant.ofEpochMilli(lastModified) : null
+        );
+    }
+
+    /**
+     * Send a conditional GET request with the validators.
+     *
+     * @return true if the server answered 304 Not Modified.
+     */
+    private boolean isNotModified(URI uri, Validators validators) {
+        RequestCallback requestCallback = createDataRequestCallback();
+        try {
+            Boolean notModified = template.execute(uri, HttpMethod.GET, request -> {
+                requestCallback.doWithRequest(request);
+                HttpHeaders headers = request.getHeaders();
+                validators.getETag().ifPresent(headers::setIfNoneMatch);
+                validators.getLastModified().ifPresent(lastModified ->
+                        headers.setIfModifiedSince(lastModified.toEpochMilli())
+                );
+                // The body, if any, is closed without being read.
+            }, response -> HttpStatus.NOT_MODIFIED.equals(response.getStatusCode()));
+            return Boolean.TRUE.equals(notModified);
+        } catch (HttpStatusCodeException hsce) {
+            log.debug("could not revalidate {}", uri, hsce);
+            return false;
+        }
+    }
 
-        final BlockingQueue<DataPoint> queue = Queues.newArrayBlockingQueue(bufferSize);
-        final AtomicReference<Exception> exception = new AtomicReference<>();
-        final Thread reader = Thread.currentThread();
+    private Stream<DataPoint> getData(URI uri, Consumer<HttpHeaders> onResponse) {
         final CountDownLatch latch = new CountDownLatch(1);
+        Stream<DataPoint> stream = openData(uri, onResponse, latch);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            // Keep the interrupt flag.
+            Thread.currentThread().interrupt();
+        }
+        return stream;
+    }
+
+    /**
+     * Send the request in another thread and return the stream of the data points, without
+     * waiting for the response. The latch is released once the response was received or the
+     * request failed.
+     * <p>
+     * A failure is handed over to the stream, that rethrows it. Closing the stream closes the
+     * response so that the thread reading it is released even if the server stalls.
+     */
+    private Stream<DataPoint> openData(URI uri, Consumer<HttpHeaders> onResponse, CountDownLatch latch) {
+
+        // We wrap the handoff in a Spliterator and let another thread handle the
+        // connection and deserialization.
+
+        final Handoff queue = transport.create(bufferSize);
+        final AtomicReference<ClientHttpResponse> currentResponse = new AtomicReference<>();
         log.debug("opening stream for {} (queue {})", uri, queue.hashCode());
         final String parentThreadName = Thread.currentThread().getName();
         Future<Void> task = executorService.submit(() -> {
             Thread.currentThread().setName(Thread.currentThread().getName() + " - calling thread: " + parentThreadName);
             try {
-                RequestCallback requestCallback = template.httpEntityCallback(null, DATAPOINT_STREAM_TYPE.getType());
+                RequestCallback requestCallback = createDataRequestCallback();
 
                 template.execute(uri, HttpMethod.GET, requestCallback, response -> {
 
+                    currentResponse.set(response);
                     latch.countDown();
+                    onResponse.accept(response.getHeaders());
 
                     ResponseExtractor<ResponseEntity<Stream<DataPoint>>> extractor;
                     extractor = template.responseEntityExtractor(DATAPOINT_STREAM_TYPE.getType());
@@ -153,41 +274,40 @@ public class RestTemplateConnector implements Connector {
                             queue.put(e);
                         }
 
-                        queue.put(BlockingQueueSpliterator.EOS);
+                        queue.end();
                         log.debug("done streaming for {} (queue {})", uri, queue.hashCode());
 
                     } catch (InterruptedException e) {
                         log.debug("interrupted while pushing datapoints from {} (queue {})", uri, queue.hashCode());
-                        reader.interrupt();
+                        queue.fail(e);
                     } catch (Exception e) {
                         log.debug("error while pushing datapoints from {} (queue {})", uri, queue.hashCode(), e);
-                        exception.set(e);
-                        reader.interrupt();
+                        queue.fail(e);
                     }
                     return null;
                 });
 
             } catch (Exception e) {
                 log.error("error while reading {} data (queue {})", uri, queue.hashCode(), e);
-                exception.set(e);
-                reader.interrupt();
+                queue.fail(e);
+            } finally {
+                latch.countDown();
             }
             return null;
         });
 
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            // Keep the interrupt flag.
-            Thread.currentThread().interrupt();
-        }
-
-        Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(queue, task, exception);
+        Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(queue, task);
         Stream<DataPoint> stream = StreamSupport.stream(spliterator, false);
 
         return stream.onClose(() -> {
             log.debug("closing stream for {} (queue {})", uri, queue.hashCode());
             task.cancel(true);
+            // Release the reading thread if it is blocked on the response.
+            ClientHttpResponse response = currentResponse.get();
+            if (response != null)
+                response.close();
+            // And the consumer, if the task never ran.
+            queue.fail(new CancellationException("stream closed"));
         });
     }
 
@@ -226,6 +346,21 @@ public class RestTemplateConnector implements Connector {
         return new RestTemplateDataset(URI.create(identifier));
     }
 
+    /**
+     * Returns a {@link Publisher} of the data of a dataset.
+     * <p>
+     * Each subscriber gets its own request, sent when it first requests data points. The data
+     * points are only read as they are requested and the signals are delivered by tasks
+     * submitted to the executor. The reading thread blocks when the subscriber does not keep
+     * up, see {@link #withVirtualThreads(RestTemplate, int)} to make this cheap.
+     */
+    public Publisher<DataPoint> getPublisher(String identifier, Executor executor) {
+        URI uri = URI.create(identifier);
+        // Do not block the executor until the response is received, the stream can be closed right away.
+        return new StreamPublisher<>(() -> openData(uri, headers -> {
+        }, new CountDownLatch(1)), executor);
+    }
+
     @Override
     public Dataset putDataset(String identifier, Dataset dataset) throws ConnectorException {
         throw new UnsupportedOperationException("Not implemented");
@@ -307,10 +442,11 @@ public class RestTemplateConnector implements Connector {
         }
     }
 
-    private class RestTemplateDataset implements Dataset {
+    private class RestTemplateDataset implements Dataset, Revalidatable {
 
         private final URI uri;
         private DataStructure structure;
+        private volatile Validators validators;
 
         private RestTemplateDataset(URI uri) {
             this.uri = uri;
@@ -339,7 +475,17 @@ public class RestTemplateConnector implements Connector {
         @Override
         public Stream<DataPoint> getData() {
             // Always return a new stream.
-            return RestTemplateConnector.this.getData(uri);
+            return RestTemplateConnector.this.getData(uri, headers -> validators = createValidators(headers));
+        }
+
+        @Override
+        public Optional<Validators> getValidators() {
+            return Optional.ofNullable(validators);
+        }
+
+        @Override
+        public boolean isNotModified(Validators validators) {
+            return RestTemplateConnector.this.isNotModified(uri, validators);
         }
 
         @Override
@@ -0,0 +1,203 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A cold {@link Publisher} that reads a new stream for each subscriber.
+ * <p>
+ * The elements are only read when the subscriber has requested them. The signals are
+ * delivered by tasks submitted to the executor; no thread is used while there is no demand.
+ * Since the stream is closed once the subscription is cancelled or completed, the request
+ * behind it is released as well. {@link Subscription#cancel()} closes the stream directly so
+ * that a drain blocked on a stalled source is released.
+ */
+final class StreamPublisher<T> implements Publisher<T> {
+
+    private final Supplier<Stream<T>> source;
+    private final Executor executor;
+
+    StreamPublisher(Supplier<Stream<T>> source, Executor executor) {
+        this.source = checkNotNull(source);
+        this.executor = checkNotNull(executor);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        checkNotNull(subscriber);
+        StreamSubscription<T> subscription = new StreamSubscription<>(subscriber, source, executor);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Emits the elements of the stream serially, up to the requested amount.
+     * <p>
+     * Every call to {@link #request(long)} and {@link #cancel()} schedules a drain unless one is
+     * already running, in which case the running drain loops once more.
+     */
+    static final class StreamSubscription<T> implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+        private final Consumer<T> onNext;
+        private final Supplier<Stream<T>> source;
+        private final Executor executor;
+
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+
+        // Set by the drain, closed by the drain or by cancel.
+        private final AtomicReference<Stream<T>> stream = new AtomicReference<>();
+
+        // Accessed by the drain only.
+        private Spliterator<T> spliterator;
+        private boolean done = false;
+
+        private StreamSubscription(Subscriber<? super T> subscriber, Supplier<Stream<T>> source, Executor executor) {
+            this.subscriber = subscriber;
+            this.onNext = subscriber::onNext;
+            this.source = source;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Rule 3.9.
+                invalidRequest = new IllegalArgumentException("the requested amount must be positive, was " + n);
+            } else {
+                requested.accumulateAndGet(n, (current, added) -> {
+                    long sum = current + added;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            closeStream();
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() != 0)
+                return;
+            try {
+                executor.execute(this);
+            } catch (RuntimeException re) {
+                pending.set(0);
+                cancelled = true;
+                done = true;
+                subscriber.onError(re);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done)
+                return;
+            try {
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+                if (invalidRequest != null) {
+                    terminate();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+
+                long demand = requested.get();
+                if (demand == 0)
+                    return;
+
+                if (spliterator == null) {
+                    Stream<T> opened = source.get();
+                    stream.set(opened);
+                    // Cancelled while opening, the stream might not have been seen by cancel.
+                    if (cancelled) {
+                        terminate();
+                        return;
+                    }
+                    spliterator = opened.spliterator();
+                }
+
+                boolean unbounded = demand == Long.MAX_VALUE;
+                long emitted = 0;
+                while (unbounded || emitted != demand) {
+                    if (cancelled) {
+                        terminate();
+                        return;
+                    }
+                    if (!spliterator.tryAdvance(onNext)) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    emitted++;
+                }
+                requested.addAndGet(-emitted);
+            } catch (Throwable t) {
+                terminate();
+                // Closing the stream on cancel makes it fail, this is not signalled (rule 1.8).
+                if (!cancelled)
+                    subscriber.onError(t);
+            }
+        }
+
+        private void terminate() {
+            done = true;
+            spliterator = null;
+            closeStream();
+        }
+
+        private void closeStream() {
+            Stream<T> toClose = stream.getAndSet(null);
+            if (toClose != null)
+                toClose.close();
+        }
+    }
+}
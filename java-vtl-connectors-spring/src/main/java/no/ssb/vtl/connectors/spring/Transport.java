@@ -0,0 +1,74 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+/**
+ * How {@link RestTemplateConnector} transfers the data points from the thread reading the
+ * response to the thread consuming the stream.
+ * <p>
+ * The throughput and the latency of each transport can be measured on the target machine with
+ * the <code>TransportBenchmark</code> of the tests.
+ */
+public enum Transport {
+
+    /**
+     * Chunks of data points in a blocking queue. The default.
+     */
+    QUEUE {
+        @Override
+        Handoff create(int bufferSize) {
+            return new Handoff.QueueHandoff(bufferSize);
+        }
+    },
+
+    /**
+     * Lock-free ring buffer, waiting threads busy spin. Lowest latency but keeps a core busy
+     * while the other side is slow.
+     */
+    RING_BUFFER_SPIN {
+        @Override
+        Handoff create(int bufferSize) {
+            return new Handoff.RingBufferHandoff(bufferSize, Handoff.WaitStrategy.SPIN);
+        }
+    },
+
+    /**
+     * Lock-free ring buffer, waiting threads yield.
+     */
+    RING_BUFFER_YIELD {
+        @Override
+        Handoff create(int bufferSize) {
+            return new Handoff.RingBufferHandoff(bufferSize, Handoff.WaitStrategy.YIELD);
+        }
+    },
+
+    /**
+     * Lock-free ring buffer, waiting threads park after a short while.
+     */
+    RING_BUFFER_PARK {
+        @Override
+        Handoff create(int bufferSize) {
+            return new Handoff.RingBufferHandoff(bufferSize, Handoff.WaitStrategy.PARK);
+        }
+    };
+
+    abstract Handoff create(int bufferSize);
+}
@@ -0,0 +1,450 @@
+package no.ssb.vtl.connectors.spring.converters;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.TypeToken;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.Dataset;
+import no.ssb.vtl.model.VTLObject;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BaseFixedWidthVector;
+import org.apache.arrow.vector.BaseVariableWidthVector;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampNanoTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.UnionVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.Types.MinorType;
+import org.apache.arrow.vector.types.UnionMode;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * A converter that reads and writes datasets as Apache Arrow IPC streams.
+ * <p>
+ * It supports reading Dataset and Stream<DataPoint> from, and writing Dataset to:
+ * <ul>
+ * <li>application/vnd.apache.arrow.stream</li>
+ * </ul>
+ * <p>
+ * Each component is a column whose metadata holds its role and its {@link RoleMapping}. The
+ * column types are:
+ * <ul>
+ * <li>STRING: utf8</li>
+ * <li>INTEGER: int64</li>
+ * <li>NUMERIC: float64</li>
+ * <li>BOOLEAN: bool</li>
+ * <li>DATE: timestamp in nanoseconds, UTC</li>
+ * <li>NUMBER: sparse union of int64 and float64, so that integers and decimals keep their type</li>
+ * </ul>
+ * The data points are written in record batches of <code>batchSize</code> rows. When reading,
+ * each batch is loaded in the column vectors and the data points are created from them. The
+ * data of a read dataset is streamed from the response and can only be read once.
+ * <p>
+ * Converters created with the default constructor share one root allocator.
+ * <p>
+ * The Arrow libraries (arrow-vector and a memory implementation such as arrow-memory-netty)
+ * are optional dependencies, needed only when this converter is used.
+ */
+public class ArrowHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+    public static final String APPLICATION_ARROW_STREAM_VALUE = "application/vnd.apache.arrow.stream";
+    public static final MediaType APPLICATION_ARROW_STREAM = MediaType.parseMediaType(APPLICATION_ARROW_STREAM_VALUE);
+
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    static final String ROLE_METADATA = "role";
+    static final String TYPE_METADATA = "type";
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final List<Field> NUMBER_CHILDREN = ImmutableList.of(
+            Field.nullable("bigint", new ArrowType.Int(64, true)),
+            Field.nullable("float8", new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE))
+    );
+
+    private static final BufferAllocator SHARED_ALLOCATOR = new RootAllocator(Long.MAX_VALUE);
+
+    // @formatter:off
+    private static final TypeToken<Stream<DataPoint>> STREAM_TYPE_TOKEN = new TypeToken<Stream<DataPoint>>() {};
+    // @formatter:on
+
+    private final BufferAllocator allocator;
+    private final int batchSize;
+
+    public ArrowHttpMessageConverter() {
+        this(SHARED_ALLOCATOR, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Create a converter that allocates the vectors from the given allocator.
+     *
+     * @param allocator the allocator of the vectors, each conversion uses a child allocator
+     * @param batchSize the number of rows per written record batch
+     */
+    public ArrowHttpMessageConverter(BufferAllocator allocator, int batchSize) {
+        super(APPLICATION_ARROW_STREAM);
+        checkArgument(batchSize > 0, "batch size must be positive");
+        this.allocator = allocator;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        throw new UnsupportedOperationException(); // we rely on can read and can write.
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return canRead(TypeToken.of(clazz), mediaType);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return type != null && type != ResolvableType.NONE.getType() && canRead(TypeToken.of(type), mediaType);
+    }
+
+    private boolean canRead(TypeToken<?> token, MediaType mediaType) {
+        return canRead(mediaType) && (token.isSupertypeOf(STREAM_TYPE_TOKEN) || token.isSupertypeOf(Dataset.class));
+    }
+
+    @Override
+    public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+        return canWrite(mediaType) && Dataset.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        return clazz != null && canWrite(clazz, mediaType);
+    }
+
+    /**
+     * Create the schema of a data structure.
+     */
+    static Schema createSchema(DataStructure structure) {
+        ImmutableList.Builder<Field> fields = ImmutableList.builder();
+        for (Map.Entry<String, Component> entry : structure.entrySet()) {
+            Component component = entry.getValue();
+            RoleMapping type = RoleMapping.fromType(component.getType());
+            Map<String, String> metadata = ImmutableMap.of(
+                    ROLE_METADATA, component.getRole().name(),
+                    TYPE_METADATA, type.name()
+            );
+            List<Field> children = type == RoleMapping.NUMBER ? NUMBER_CHILDREN : ImmutableList.of();
+            fields.add(new Field(entry.getKey(), new FieldType(true, arrowType(type), null, metadata), children));
+        }
+        return new Schema(fields.build());
+    }
+
+    private static ArrowType arrowType(RoleMapping type) {
+        switch (type) {
+            case INTEGER:
+                return new ArrowType.Int(64, true);
+            case NUMERIC:
+            case FLOAT:
+                return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+            case BOOLEAN:
+            case BOOL:
+                return ArrowType.Bool.INSTANCE;
+            case DATE:
+                return new ArrowType.Timestamp(TimeUnit.NANOSECOND, "UTC");
+            case NUMBER:
+                return new ArrowType.Union(UnionMode.Sparse, new int[]{MinorType.BIGINT.ordinal(), MinorType.FLOAT8.ordinal()});
+            case STRING:
+            default:
+                return ArrowType.Utf8.INSTANCE;
+        }
+    }
+
+    /**
+     * Create the data structure of a schema written by this converter.
+     */
+    static DataStructure createDataStructure(Schema schema) {
+        DataStructure.Builder builder = DataStructure.builder();
+        for (Field field : schema.getFields()) {
+            Map<String, String> metadata = field.getMetadata();
+            String role = metadata.get(ROLE_METADATA);
+            String type = metadata.get(TYPE_METADATA);
+            if (role == null || type == null)
+                throw new IllegalArgumentException(format("missing role or type metadata in column %s", field.getName()));
+            builder.put(field.getName(), Component.Role.valueOf(role), RoleMapping.valueOf(type).getType());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        return read(TypeToken.of(type), inputMessage);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        return read(TypeToken.of(clazz), inputMessage);
+    }
+
+    private Object read(TypeToken<?> token, HttpInputMessage inputMessage) throws IOException {
+        BufferAllocator readAllocator = allocator.newChildAllocator("arrow-read", 0, Long.MAX_VALUE);
+        ArrowStreamReader reader = new ArrowStreamReader(inputMessage.getBody(), readAllocator);
+        DataStructure structure;
+        VectorSchemaRoot root;
+        try {
+            root = reader.getVectorSchemaRoot();
+            structure = createDataStructure(root.getSchema());
+        } catch (IOException | RuntimeException e) {
+            close(reader, readAllocator);
+            throw new HttpMessageNotReadableException(format("could not read the arrow schema: %s", e.getMessage()), e);
+        }
+
+        Stream<DataPoint> stream = StreamSupport.stream(new BatchSpliterator(reader, root), false)
+                .onClose(() -> close(reader, readAllocator));
+
+        if (token.isSupertypeOf(STREAM_TYPE_TOKEN))
+            return stream;
+
+        AtomicBoolean consumed = new AtomicBoolean();
+        return new Dataset() {
+            @Override
+            public DataStructure getDataStructure() {
+                return structure;
+            }
+
+            @Override
+            public Stream<DataPoint> getData() {
+                if (consumed.getAndSet(true))
+                    throw new IllegalStateException("the data of an arrow response can only be read once");
+                return stream;
+            }
+
+            @Override
+            public Optional<Map<String, Integer>> getDistinctValuesCount() {
+                return Optional.empty();
+            }
+
+            @Override
+            public Optional<Long> getSize() {
+                return Optional.empty();
+            }
+        };
+    }
+
+    private static void close(ArrowStreamReader reader, BufferAllocator allocator) {
+        try {
+            reader.close();
+        } catch (Exception e) {
+            throw new RuntimeException(format("could not close %s", reader), e);
+        } finally {
+            allocator.close();
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        if (!(object instanceof Dataset))
+            throw new IllegalArgumentException(format("Got wrong object type %s", object.getClass()));
+
+        Dataset dataset = (Dataset) object;
+
+        // Same column order as the json representation.
+        DataStructure structure = dataset.getDataStructure();
+        DataStructure sortedStructure = DatasetHttpMessageConverter.sortDataStructure(structure);
+        ImmutableList<Component> components = ImmutableList.copyOf(structure.values());
+        int[] index = new int[sortedStructure.size()];
+        int column = 0;
+        for (String name : sortedStructure.keySet()) {
+            index[column++] = components.indexOf(structure.get(name));
+        }
+
+        try (
+                BufferAllocator writeAllocator = allocator.newChildAllocator("arrow-write", 0, Long.MAX_VALUE);
+                VectorSchemaRoot root = VectorSchemaRoot.create(createSchema(sortedStructure), writeAllocator);
+                ArrowStreamWriter writer = new ArrowStreamWriter(root, null, Channels.newChannel(outputMessage.getBody()));
+                Stream<DataPoint> data = dataset.getData()
+        ) {
+            List<FieldVector> vectors = root.getFieldVectors();
+            writer.start();
+
+            root.allocateNew();
+            int rows = 0;
+            for (DataPoint point : (Iterable<DataPoint>) data::iterator) {
+                for (int i = 0; i < index.length; i++) {
+                    setValue(vectors.get(i), rows, point.get(index[i]).get());
+                }
+                if (++rows == batchSize) {
+                    root.setRowCount(rows);
+                    writer.writeBatch();
+                    root.allocateNew();
+                    rows = 0;
+                }
+            }
+            if (rows > 0) {
+                root.setRowCount(rows);
+                writer.writeBatch();
+            }
+            writer.end();
+        }
+    }
+
+    private static void setValue(FieldVector vector, int row, Object value) {
+        if (vector instanceof UnionVector) {
+            setNumber((UnionVector) vector, row, (Number) value);
+        } else if (value == null) {
+            if (vector instanceof BaseVariableWidthVector) {
+                ((BaseVariableWidthVector) vector).setNull(row);
+            } else {
+                ((BaseFixedWidthVector) vector).setNull(row);
+            }
+        } else if (vector instanceof VarCharVector) {
+            ((VarCharVector) vector).setSafe(row, value.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (vector instanceof BigIntVector) {
+            ((BigIntVector) vector).setSafe(row, ((Number) value).longValue());
+        } else if (vector instanceof Float8Vector) {
+            ((Float8Vector) vector).setSafe(row, ((Number) value).doubleValue());
+        } else if (vector instanceof BitVector) {
+            ((BitVector) vector).setSafe(row, (Boolean) value ? 1 : 0);
+        } else if (vector instanceof TimeStampNanoTZVector) {
+            Instant instant = (Instant) value;
+            long nanos = Math.addExact(Math.multiplyExact(instant.getEpochSecond(), NANOS_PER_SECOND), instant.getNano());
+            ((TimeStampNanoTZVector) vector).setSafe(row, nanos);
+        } else {
+            throw new IllegalArgumentException(format("unsupported vector %s", vector.getClass()));
+        }
+    }
+
+    /**
+     * Writes integers in the int64 child of a NUMBER column and any other number in its float64 child.
+     */
+    private static void setNumber(UnionVector vector, int row, Number value) {
+        if (value == null) {
+            vector.setType(row, MinorType.NULL);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            vector.setType(row, MinorType.BIGINT);
+            vector.getBigIntVector().setSafe(row, value.longValue());
+        } else {
+            vector.setType(row, MinorType.FLOAT8);
+            vector.getFloat8Vector().setSafe(row, value.doubleValue());
+        }
+    }
+
+    /**
+     * Reads a value of a column, the way {@link #setValue(FieldVector, int, Object)} wrote it.
+     */
+    private static VTLObject getValue(FieldVector vector, int row) {
+        if (vector instanceof UnionVector) {
+            Object value = vector.getObject(row);
+            return value == null ? VTLObject.NULL : VTLObject.of(value);
+        }
+        if (vector.isNull(row))
+            return VTLObject.NULL;
+        if (vector instanceof VarCharVector) {
+            return VTLObject.of(new String(((VarCharVector) vector).get(row), StandardCharsets.UTF_8));
+        } else if (vector instanceof BigIntVector) {
+            return VTLObject.of(((BigIntVector) vector).get(row));
+        } else if (vector instanceof Float8Vector) {
+            return VTLObject.of(((Float8Vector) vector).get(row));
+        } else if (vector instanceof BitVector) {
+            return VTLObject.of(((BitVector) vector).get(row) != 0);
+        } else if (vector instanceof TimeStampNanoTZVector) {
+            long nanos = ((TimeStampNanoTZVector) vector).get(row);
+            return VTLObject.of(Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND)));
+        }
+        throw new IllegalArgumentException(format("unsupported vector %s", vector.getClass()));
+    }
+
+    /**
+     * Reads the data points of the record batches, loading the next batch when the current one
+     * has been read.
+     */
+    private static final class BatchSpliterator extends Spliterators.AbstractSpliterator<DataPoint> {
+
+        private final ArrowStreamReader reader;
+        private final List<FieldVector> vectors;
+        private int row = 0;
+        private int rowCount = 0;
+
+        private BatchSpliterator(ArrowStreamReader reader, VectorSchemaRoot root) {
+            super(Long.MAX_VALUE, Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.ORDERED);
+            this.reader = reader;
+            this.vectors = root.getFieldVectors();
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DataPoint> action) {
+            try {
+                while (row == rowCount) {
+                    if (!reader.loadNextBatch())
+                        return false;
+                    rowCount = reader.getVectorSchemaRoot().getRowCount();
+                    row = 0;
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+
+            DataPoint point = DataPoint.create(vectors.size());
+            for (int i = 0; i < vectors.size(); i++) {
+                point.set(i, getValue(vectors.get(i), row));
+            }
+            row++;
+            action.accept(point);
+            return true;
+        }
+    }
+}
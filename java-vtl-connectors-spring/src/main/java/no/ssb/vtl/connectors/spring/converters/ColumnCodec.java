@@ -0,0 +1,234 @@
+package no.ssb.vtl.connectors.spring.converters;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import no.ssb.vtl.model.VTLObject;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes the values of a column.
+ * <p>
+ * The codecs are created once per column from the type of its component. The common types
+ * are converted directly from and to the parser and generator tokens. The other types, and
+ * values that do not match the type of the column, use a reader and a writer prepared for
+ * the type.
+ */
+abstract class ColumnCodec {
+
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    private ColumnCodec(Class<?> type, ObjectMapper mapper) {
+        this.reader = mapper.readerFor(type);
+        this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Create a codec for the values of the given type.
+     */
+    static ColumnCodec create(Class<?> type, ObjectMapper mapper) {
+        if (String.class.equals(type))
+            return new StringCodec(mapper);
+        if (Long.class.equals(type))
+            return new LongCodec(mapper);
+        if (Double.class.equals(type))
+            return new DoubleCodec(mapper);
+        if (Boolean.class.equals(type))
+            return new BooleanCodec(mapper);
+        if (Number.class.equals(type))
+            return new NumberCodec(mapper);
+        return new ColumnCodec(type, mapper) {
+        };
+    }
+
+    /**
+     * Read a value, the parser being on its first token.
+     */
+    VTLObject read(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL)
+            return VTLObject.NULL;
+        return VTLObject.of(readValue(parser, token));
+    }
+
+    /**
+     * Write a value, or null.
+     */
+    void write(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (!writeValue(generator, value)) {
+            writer.writeValue(generator, value);
+        }
+    }
+
+    /**
+     * Read a non null value.
+     */
+    Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        return reader.readValue(parser);
+    }
+
+    /**
+     * Write a non null value directly.
+     *
+     * @return false if the value was not written
+     */
+    boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+        return false;
+    }
+
+    private static final class StringCodec extends ColumnCodec {
+
+        private StringCodec(ObjectMapper mapper) {
+            super(String.class, mapper);
+        }
+
+        @Override
+        Object readValue(JsonParser parser, JsonToken token) throws IOException {
+            return token == JsonToken.VALUE_STRING ? parser.getText() : super.readValue(parser, token);
+        }
+
+        @Override
+        boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (!(value instanceof String))
+                return false;
+            generator.writeString((String) value);
+            return true;
+        }
+    }
+
+    private static final class LongCodec extends ColumnCodec {
+
+        private LongCodec(ObjectMapper mapper) {
+            super(Long.class, mapper);
+        }
+
+        @Override
+        Object readValue(JsonParser parser, JsonToken token) throws IOException {
+            if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER)
+                return parser.getLongValue();
+            return super.readValue(parser, token);
+        }
+
+        @Override
+        boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (!(value instanceof Long))
+                return false;
+            generator.writeNumber((Long) value);
+            return true;
+        }
+    }
+
+    private static final class DoubleCodec extends ColumnCodec {
+
+        private DoubleCodec(ObjectMapper mapper) {
+            super(Double.class, mapper);
+        }
+
+        @Override
+        Object readValue(JsonParser parser, JsonToken token) throws IOException {
+            if (token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT)
+                return parser.getDoubleValue();
+            return super.readValue(parser, token);
+        }
+
+        @Override
+        boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (!(value instanceof Double))
+                return false;
+            generator.writeNumber((Double) value);
+            return true;
+        }
+    }
+
+    private static final class BooleanCodec extends ColumnCodec {
+
+        private BooleanCodec(ObjectMapper mapper) {
+            super(Boolean.class, mapper);
+        }
+
+        @Override
+        Object readValue(JsonParser parser, JsonToken token) throws IOException {
+            if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
+                return parser.getBooleanValue();
+            return super.readValue(parser, token);
+        }
+
+        @Override
+        boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (!(value instanceof Boolean))
+                return false;
+            generator.writeBoolean((Boolean) value);
+            return true;
+        }
+    }
+
+    private static final class NumberCodec extends ColumnCodec {
+
+        private final ObjectMapper mapper;
+
+        private NumberCodec(ObjectMapper mapper) {
+            super(Number.class, mapper);
+            this.mapper = mapper;
+        }
+
+        @Override
+        Object readValue(JsonParser parser, JsonToken token) throws IOException {
+            // The type the mapper uses for untyped numbers, as when they were converted by the mapper.
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                if (mapper.isEnabled(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS))
+                    return parser.getBigIntegerValue();
+                if (mapper.isEnabled(DeserializationFeature.USE_LONG_FOR_INTS)
+                        && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER)
+                    return parser.getLongValue();
+                return parser.getNumberValue();
+            }
+            if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                if (mapper.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS))
+                    return parser.getDecimalValue();
+                return parser.getDoubleValue();
+            }
+            return super.readValue(parser, token);
+        }
+
+        @Override
+        boolean writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (value instanceof Long) {
+                generator.writeNumber((Long) value);
+            } else if (value instanceof Double) {
+                generator.writeNumber((Double) value);
+            } else {
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -22,12 +22,15 @@ package no.ssb.vtl.connectors.spring.converters;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.reflect.TypeToken;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.VTLObject;
@@ -40,16 +43,17 @@ import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Type;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
-import static java.util.stream.Collectors.toList;
 
 /**
  * A converter that can read and write data point streams.
@@ -63,6 +67,9 @@ import static java.util.stream.Collectors.toList;
  * <ul>
  * <li>application/ssb.dataset.data+json;version=2</li>
  * </ul>
+ * <p>
+ * When the mapper uses a Smile factory, it reads and writes
+ * application/ssb.dataset.data+smile;version=2 instead.
  */
 public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Stream<DataPoint>> {
 
@@ -71,16 +78,24 @@ public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Strea
     public static final String APPLICATION_SSB_DATASET_DATA_JSON_V2_VALUE = "application/ssb.dataset.data+json;version=2";
     public static final MediaType APPLICATION_SSB_DATASET_DATA_JSON_V2 = MediaType.parseMediaType(APPLICATION_SSB_DATASET_DATA_JSON_V2_VALUE);
 
+    public static final String APPLICATION_SSB_DATASET_DATA_SMILE_V2_VALUE = "application/ssb.dataset.data+smile;version=2";
+    public static final MediaType APPLICATION_SSB_DATASET_DATA_SMILE_V2 = MediaType.parseMediaType(APPLICATION_SSB_DATASET_DATA_SMILE_V2_VALUE);
+
 
     // @formatter:off
     private static final TypeToken<Stream<DataPoint>> SUPPORTED_TYPE = new TypeToken<Stream<DataPoint>>() {};
-    private static final TypeReference<List<VTLObjectWrapper>> LIST_TYPE_REFERENCE = new TypeReference<List<VTLObjectWrapper>>() {};
     // @formatter:on
 
+    private static final SerializedString TYPE_FIELD = new SerializedString("type");
+    private static final SerializedString VALUE_FIELD = new SerializedString("val");
+    private static final SerializedString[] TYPE_NAMES = Arrays.stream(RoleMapping.values())
+            .map(mapping -> new SerializedString(mapping.name()))
+            .toArray(SerializedString[]::new);
+
     private final ObjectMapper mapper;
     private final boolean requireVersion;
     private JsonFactory factory;
-    private ObjectWriter rowWriter;
+    private ObjectWriter valueWriter;
 
     public DataHttpConverter(ObjectMapper mapper) {
         this(mapper, true);
@@ -88,10 +103,10 @@ public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Strea
 
     public DataHttpConverter(ObjectMapper mapper, boolean requireVersion) {
         super(
-                APPLICATION_SSB_DATASET_DATA_JSON_V2
+                SmileFormat.isSmile(mapper) ? APPLICATION_SSB_DATASET_DATA_SMILE_V2 : APPLICATION_SSB_DATASET_DATA_JSON_V2
         );
         this.mapper = checkNotNull(mapper);
-        this.rowWriter = this.mapper.writerFor(LIST_TYPE_REFERENCE);
+        this.valueWriter = this.mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
         this.factory = this.mapper.getFactory();
         this.requireVersion = requireVersion;
 
@@ -180,24 +195,7 @@ public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Strea
     }
 
     Stream<DataPoint> readWithParser(JsonParser parser) throws IOException {
-
-        // TODO: Manually deserialize (use mapper.readerFor() and types).
-
-        MappingIterator<List<VTLObjectWrapper>> data = mapper.readerFor(LIST_TYPE_REFERENCE)
-                .readValues(parser);
-
-        Stream<List<VTLObjectWrapper>> rawStream = StreamSupport.stream(
-                Spliterators.spliteratorUnknownSize(
-                        data, Spliterator.IMMUTABLE
-                ), false
-        );
-
-        return rawStream.map(pointWrappers -> {
-            return pointWrappers.stream()
-                    .map(this::toVTLObject)
-                    .collect(toList()
-                    );
-        }).map(DataPoint::create).onClose(() -> {
+        return StreamSupport.stream(new DataPointSpliterator(parser), false).onClose(() -> {
             try {
                 parser.close();
             } catch (IOException e) {
@@ -206,6 +204,147 @@ public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Strea
         });
     }
 
+    /**
+     * Read the value of a cell, the parser being on the token that starts it.
+     * <p>
+     * The common tokens are converted directly, to the types the mapper would use. The others,
+     * and the dates, go through the mapper.
+     */
+    private VTLObject readCell(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+            return VTLObject.NULL;
+        if (parser.currentToken() != JsonToken.START_OBJECT)
+            throw new JsonParseException(parser, "expected a data point value object");
+
+        RoleMapping type = null;
+        JsonToken valueToken = null;
+        Object value = null;
+        TreeNode bufferedValue = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("type".equals(field)) {
+                type = token == JsonToken.VALUE_NULL ? null : RoleMapping.valueOf(parser.getText());
+            } else if ("val".equals(field)) {
+                if (type == null) {
+                    // The type is not known yet, keep the value aside.
+                    valueToken = token;
+                    bufferedValue = token == JsonToken.VALUE_NULL ? null : parser.readValueAsTree();
+                } else {
+                    valueToken = token;
+                    value = readValue(parser, token, type);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (valueToken == null || valueToken == JsonToken.VALUE_NULL)
+            return VTLObject.NULL;
+        if (type == null)
+            throw new JsonParseException(parser, "missing type of data point value");
+        if (bufferedValue != null) {
+            try (JsonParser buffered = bufferedValue.traverse(mapper)) {
+                value = readValue(buffered, buffered.nextToken(), type);
+            }
+        }
+        return VTLObject.of(value);
+    }
+
+    private Object readValue(JsonParser parser, JsonToken token, RoleMapping type) throws IOException {
+        switch (type) {
+            case STRING:
+                if (token == JsonToken.VALUE_STRING)
+                    return parser.getText();
+                break;
+            case INTEGER:
+                if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER)
+                    return parser.getLongValue();
+                break;
+            case NUMERIC:
+            case FLOAT:
+                if (token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT)
+                    return parser.getDoubleValue();
+                break;
+            case NUMBER:
+                // The type the mapper uses for untyped numbers, as when they were converted by the mapper.
+                if (token == JsonToken.VALUE_NUMBER_INT) {
+                    if (mapper.isEnabled(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS))
+                        return parser.getBigIntegerValue();
+                    if (mapper.isEnabled(DeserializationFeature.USE_LONG_FOR_INTS)
+                            && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER)
+                        return parser.getLongValue();
+                    return parser.getNumberValue();
+                }
+                if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    if (mapper.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS))
+                        return parser.getDecimalValue();
+                    return parser.getDoubleValue();
+                }
+                break;
+            case BOOLEAN:
+            case BOOL:
+                if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
+                    return parser.getBooleanValue();
+                break;
+            case DATE:
+                // Through the mapper, so that its date format and deserializers apply.
+                break;
+        }
+        return mapper.readValue(parser, type.getType());
+    }
+
+    /**
+     * Reads the rows of data points, one at a time.
+     * <p>
+     * The parser starts on the first row (or the end of the data).
+     */
+    private final class DataPointSpliterator extends Spliterators.AbstractSpliterator<DataPoint> {
+
+        private final JsonParser parser;
+        private boolean started = false;
+        private int width = 0;
+
+        private DataPointSpliterator(JsonParser parser) {
+            super(Long.MAX_VALUE, Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.ORDERED);
+            this.parser = parser;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DataPoint> action) {
+            try {
+                JsonToken token = started ? parser.nextToken() : parser.currentToken();
+                started = true;
+                if (token == null || token == JsonToken.END_ARRAY)
+                    return false;
+                if (token != JsonToken.START_ARRAY)
+                    throw new JsonParseException(parser, "expected a data point array");
+
+                // Rows usually all have the same width.
+                DataPoint point = DataPoint.create(width);
+                int index = 0;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    VTLObject value = readCell(parser);
+                    if (index < width) {
+                        point.set(index, value);
+                    } else {
+                        point.add(value);
+                    }
+                    index++;
+                }
+                if (index < width)
+                    point.subList(index, width).clear();
+                width = index;
+
+                action.accept(point);
+                return true;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
     @Override
     protected Stream<DataPoint> readInternal(Class<? extends Stream<DataPoint>> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
         JsonParser parser = factory.createParser(inputMessage.getBody());
@@ -219,61 +358,81 @@ public class DataHttpConverter extends AbstractGenericHttpMessageConverter<Strea
     protected void writeInternal(Stream<DataPoint> stream, Type type, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
         try (
                 JsonGenerator generator = factory.createGenerator(outputMessage.getBody());
-                SequenceWriter sequenceWriter = rowWriter.writeValues(generator);
                 Stream<DataPoint> closedStream = stream
         ) {
-
+            DataPointWriter writer = new DataPointWriter(generator);
             generator.writeStartArray();
             for (DataPoint point : (Iterable<DataPoint>) closedStream::iterator) {
-                List<VTLObjectWrapper> wrapped = point.stream()
-                        .map(this::fromVTLObject)
-                        .collect(toList());
-                sequenceWriter.write(wrapped);
+                writer.write(point);
             }
             generator.writeEndArray();
         }
     }
 
-    private VTLObjectWrapper fromVTLObject(VTLObject object) {
-        // TODO: Reuse same object to improve perf.
-        VTLObjectWrapper wrapper = new VTLObjectWrapper();
-        if (object == null || object.get() == null)
-            return null;
-
-        Class<?> type = object.get().getClass();
-        wrapper.setType(RoleMapping.fromType(type));
-        wrapper.setVal(object.get());
-
-        return wrapper;
-    }
-
-    private VTLObject toVTLObject(VTLObjectWrapper VTLObjectWrapper) {
-        if (VTLObjectWrapper == null || VTLObjectWrapper.val == null)
-            return VTLObject.NULL;
-        return VTLObject.of(
-                mapper.convertValue(VTLObjectWrapper.val, VTLObjectWrapper.type.getType())
-        );
-    }
+    /**
+     * Writes the data points directly with the generator.
+     * <p>
+     * The {@link RoleMapping} of each column is resolved from the class of its first value and
+     * only resolved again if the class changes.
+     */
+    private final class DataPointWriter {
 
-    private static class VTLObjectWrapper {
-        private RoleMapping type;
-        private Object val;
+        private final JsonGenerator generator;
+        private Class<?>[] columnClasses = new Class<?>[0];
+        private RoleMapping[] columnTypes = new RoleMapping[0];
 
-        public RoleMapping getType() {
-            return type;
+        private DataPointWriter(JsonGenerator generator) {
+            this.generator = generator;
         }
 
-        public void setType(RoleMapping type) {
-            this.type = type;
+        private void write(DataPoint point) throws IOException {
+            if (point.size() > columnTypes.length) {
+                columnClasses = Arrays.copyOf(columnClasses, point.size());
+                columnTypes = Arrays.copyOf(columnTypes, point.size());
+            }
+            generator.writeStartArray();
+            for (int i = 0; i < point.size(); i++) {
+                VTLObject object = point.get(i);
+                Object value = object == null ? null : object.get();
+                if (value == null) {
+                    generator.writeNull();
+                } else {
+                    writeCell(typeOf(i, value.getClass()), value);
+                }
+            }
+            generator.writeEndArray();
         }
 
-        public Object getVal() {
-            return val;
+        private RoleMapping typeOf(int column, Class<?> clazz) {
+            if (columnClasses[column] != clazz) {
+                columnTypes[column] = RoleMapping.fromType(clazz);
+                columnClasses[column] = clazz;
+            }
+            return columnTypes[column];
         }
 
-        public void setVal(Object val) {
-            this.val = val;
+        private void writeCell(RoleMapping type, Object value) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName(TYPE_FIELD);
+            generator.writeString(TYPE_NAMES[type.ordinal()]);
+            generator.writeFieldName(VALUE_FIELD);
+            if (value instanceof String) {
+                generator.writeString((String) value);
+            } else if (value instanceof Long) {
+                generator.writeNumber((Long) value);
+            } else if (value instanceof Integer) {
+                generator.writeNumber((Integer) value);
+            } else if (value instanceof Double) {
+                generator.writeNumber((Double) value);
+            } else if (value instanceof Float) {
+                generator.writeNumber((Float) value);
+            } else if (value instanceof Boolean) {
+                generator.writeBoolean((Boolean) value);
+            } else {
+                // Dates and other numbers are written as configured in the mapper.
+                valueWriter.writeValue(generator, value);
+            }
+            generator.writeEndObject();
         }
     }
-
 }
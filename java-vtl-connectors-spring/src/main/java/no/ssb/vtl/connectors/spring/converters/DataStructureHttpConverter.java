@@ -59,12 +59,18 @@ import static no.ssb.vtl.model.VtlOrdering.BY_ROLE;
  * <li>application/ssb.dataset.structure+json</li>
  * <li>application/x-ssb.dataset.structure+json</li>
  * </ul>
+ * <p>
+ * When the mapper uses a Smile factory, it reads and writes
+ * application/ssb.dataset.structure+smile instead.
  */
 public class DataStructureHttpConverter extends AbstractHttpMessageConverter<DataStructure> {
 
     public static final String APPLICATION_SSB_DATASET_STRUCTURE_JSON_VALUE = "application/ssb.dataset.structure+json";
     public static final MediaType APPLICATION_SSB_DATASET_STRUCTURE_JSON = MediaType.parseMediaType(APPLICATION_SSB_DATASET_STRUCTURE_JSON_VALUE);
 
+    public static final String APPLICATION_SSB_DATASET_STRUCTURE_SMILE_VALUE = "application/ssb.dataset.structure+smile";
+    public static final MediaType APPLICATION_SSB_DATASET_STRUCTURE_SMILE = MediaType.parseMediaType(APPLICATION_SSB_DATASET_STRUCTURE_SMILE_VALUE);
+
     private final ObjectMapper mapper;
 
     private final TypeReference<List<DataStructureWrapper>> TYPE_REFERENCE = new TypeReference<List<DataStructureWrapper>>() {
@@ -76,7 +82,7 @@ public class DataStructureHttpConverter extends AbstractHttpMessageConverter<Dat
     }
 
     public DataStructureHttpConverter(ObjectMapper mapper) {
-        this(APPLICATION_SSB_DATASET_STRUCTURE_JSON, mapper);
+        this(SmileFormat.isSmile(mapper) ? APPLICATION_SSB_DATASET_STRUCTURE_SMILE : APPLICATION_SSB_DATASET_STRUCTURE_JSON, mapper);
     }
 
     @Override
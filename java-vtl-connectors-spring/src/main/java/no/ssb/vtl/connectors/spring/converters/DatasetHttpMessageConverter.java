@@ -30,14 +30,12 @@ import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.reflect.TypeToken;
 import no.ssb.vtl.model.Component;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
-import no.ssb.vtl.model.VTLObject;
 import org.springframework.http.HttpInputMessage;
 import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.MediaType;
@@ -57,13 +55,13 @@ import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.TreeSet;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static java.lang.String.format;
 import static no.ssb.vtl.connectors.spring.converters.DataHttpConverter.APPLICATION_SSB_DATASET_DATA_JSON_V2;
+import static no.ssb.vtl.connectors.spring.converters.DataHttpConverter.APPLICATION_SSB_DATASET_DATA_SMILE_V2;
 import static no.ssb.vtl.model.VtlOrdering.BY_NAME;
 import static no.ssb.vtl.model.VtlOrdering.BY_ROLE;
 
@@ -78,6 +76,8 @@ import static no.ssb.vtl.model.VtlOrdering.BY_ROLE;
  * <p>
  * Dataset -> application/ssb.dataset+json;version=2
  * Dataset -> application/ssb.dataset.data+json;version=2
+ * <p>
+ * When the mapper uses a Smile factory, the same conversions use the +smile media types.
  */
 public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConverter {
 
@@ -85,10 +85,16 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
 
     public static final MediaType APPLICATION_DATASET_JSON = MediaType.parseMediaType(APPLICATION_DATASET_JSON_VALUE);
 
+    public static final String APPLICATION_DATASET_SMILE_VALUE = "application/ssb.dataset+smile;version=2";
+
+    public static final MediaType APPLICATION_DATASET_SMILE = MediaType.parseMediaType(APPLICATION_DATASET_SMILE_VALUE);
+
     public static final String STRUCTURE_FIELD_NAME = "structure";
     public static final String DATA_FIELD_NAME = "data";
     @VisibleForTesting
     static final List<MediaType> SUPPORTED_TYPES;
+    @VisibleForTesting
+    static final List<MediaType> SUPPORTED_SMILE_TYPES;
     // @formatter:off
     private static final TypeToken<Stream<DataPoint>> STREAM_TYPE_TOKEN = new TypeToken<Stream<DataPoint>>() {};
 
@@ -96,16 +102,22 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
         SUPPORTED_TYPES = new ArrayList<>();
         SUPPORTED_TYPES.add(APPLICATION_DATASET_JSON);
         SUPPORTED_TYPES.add(APPLICATION_SSB_DATASET_DATA_JSON_V2);
+
+        SUPPORTED_SMILE_TYPES = new ArrayList<>();
+        SUPPORTED_SMILE_TYPES.add(APPLICATION_DATASET_SMILE);
+        SUPPORTED_SMILE_TYPES.add(APPLICATION_SSB_DATASET_DATA_SMILE_V2);
     }
     // @formatter:on
 
     private final DataHttpConverter dataConverter;
     private final DataStructureHttpConverter structureConverter;
+    private final List<MediaType> supportedTypes;
 
     public DatasetHttpMessageConverter(ObjectMapper objectMapper) {
         super(objectMapper);
         dataConverter = new DataHttpConverter(objectMapper);
         structureConverter = new DataStructureHttpConverter(objectMapper);
+        supportedTypes = SmileFormat.isSmile(objectMapper) ? SUPPORTED_SMILE_TYPES : SUPPORTED_TYPES;
     }
 
     /**
@@ -172,7 +184,7 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
 
     @Override
     public List<MediaType> getSupportedMediaTypes() {
-        return SUPPORTED_TYPES;
+        return supportedTypes;
     }
 
     @Override
@@ -214,9 +226,9 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
         Stream<DataPoint> stream = Stream.empty();
         if (JsonToken.START_ARRAY == parser.currentToken()) {
 
-            List<? extends Class<?>> expectedTypes = structure.values().stream()
-                    .map(Component::getType)
-                    .collect(Collectors.toList());
+            ColumnCodec[] codecs = structure.values().stream()
+                    .map(component -> ColumnCodec.create(component.getType(), mapper))
+                    .toArray(ColumnCodec[]::new);
 
             stream = StreamSupport.stream(new Spliterators.AbstractSpliterator<DataPoint>(
                     Long.MAX_VALUE, Spliterator.IMMUTABLE
@@ -225,18 +237,16 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
                 public boolean tryAdvance(Consumer<? super DataPoint> action) {
                     try {
                         if (parser.currentToken() == JsonToken.START_ARRAY) {
-                            parser.nextToken();
 
-                            DataPoint dataPoint = DataPoint.create(expectedTypes.size());
-                            int pos = 0;
-                            for (Class<?> expectedType : expectedTypes) {
-                                Object value = parser.readValueAs(expectedType);
-                                dataPoint.set(pos++, VTLObject.of(value));
+                            DataPoint dataPoint = DataPoint.create(codecs.length);
+                            for (int pos = 0; pos < codecs.length; pos++) {
+                                parser.nextToken();
+                                dataPoint.set(pos, codecs[pos].read(parser));
                             }
 
                             action.accept(dataPoint);
 
-                            parser.nextToken();
+                            checkToken(parser, parser.nextToken(), JsonToken.END_ARRAY);
                             parser.nextToken();
 
                             return true;
@@ -336,12 +346,15 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
 
             generator.writeArrayFieldStart(DATA_FIELD_NAME);
 
-            // Build an index map
-            List<Integer> index = Lists.newArrayListWithCapacity(structure.size());
+            // Build an index map and the codecs of the columns, in the sorted order.
+            int[] index = new int[sortedStructure.size()];
+            ColumnCodec[] codecs = new ColumnCodec[sortedStructure.size()];
             ImmutableList<Component> components = ImmutableList.copyOf(structure.values());
-            for (String column : sortedStructure.keySet()) {
-                int indexOf = components.indexOf(structure.get(column));
-                index.add(indexOf);
+            int column = 0;
+            for (Map.Entry<String, Component> entry : sortedStructure.entrySet()) {
+                index[column] = components.indexOf(structure.get(entry.getKey()));
+                codecs[column] = ColumnCodec.create(entry.getValue().getType(), mapper);
+                column++;
             }
 
             try (Stream<DataPoint> data = dataset.getData()) {
@@ -349,8 +362,8 @@ public class DatasetHttpMessageConverter extends MappingJackson2HttpMessageConve
                 while (it.hasNext()) {
                     DataPoint next = it.next();
                     generator.writeStartArray(next.size());
-                    for (Integer pos : index) {
-                        mapper.writeValue(generator, next.get(pos).get());
+                    for (int i = 0; i < index.length; i++) {
+                        codecs[i].write(generator, next.get(index[i]).get());
                     }
                     generator.writeEndArray();
                 }
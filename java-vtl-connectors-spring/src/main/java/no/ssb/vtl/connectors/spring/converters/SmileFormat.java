@@ -0,0 +1,45 @@
+package no.ssb.vtl.connectors.spring.converters;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Support for the binary Smile variant of the media types.
+ * <p>
+ * The converters speak Smile when their mapper was created with a
+ * <code>com.fasterxml.jackson.dataformat.smile.SmileFactory</code>. The factory is recognized
+ * by its format name so that jackson-dataformat-smile is only needed by those who use it.
+ */
+final class SmileFormat {
+
+    static final String FORMAT_NAME = "Smile";
+
+    private SmileFormat() {
+    }
+
+    /**
+     * Returns true if the mapper reads and writes Smile.
+     */
+    static boolean isSmile(ObjectMapper mapper) {
+        return FORMAT_NAME.equals(mapper.getFactory().getFormatName());
+    }
+}
@@ -0,0 +1,139 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.VTLObject;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BlockingQueueSpliteratorTest {
+
+    @Test
+    public void testDataPointsAreHandedOver() throws Exception {
+        for (Transport transport : Transport.values()) {
+            assertHandsOver(transport.create(1024));
+        }
+    }
+
+    private static void assertHandsOver(Handoff handoff) throws Exception {
+        List<DataPoint> data = IntStream.range(0, 10_000)
+                .mapToObj(i -> DataPoint.create(VTLObject.of((long) i)))
+                .collect(Collectors.toList());
+
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                for (DataPoint dataPoint : data) {
+                    handoff.put(dataPoint);
+                }
+                handoff.end();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        });
+        Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(handoff, producer);
+
+        assertThat(StreamSupport.stream(spliterator, false).collect(Collectors.toList()))
+                .isEqualTo(data);
+    }
+
+    @Test
+    public void testPartialChunkIsHandedOverToAWaitingConsumer() throws Exception {
+        Handoff handoff = Transport.QUEUE.create(1024);
+        CountDownLatch received = new CountDownLatch(1);
+
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                // Wait for the consumer to block.
+                Thread.sleep(100);
+                handoff.put(DataPoint.create(VTLObject.of(1L)));
+                assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+                handoff.end();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        });
+        Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(handoff, producer);
+
+        assertThat(spliterator.tryAdvance(dataPoint -> received.countDown())).isTrue();
+        assertThat(spliterator.tryAdvance(dataPoint -> {
+        })).isFalse();
+        producer.get();
+    }
+
+    @Test
+    public void testPartialChunkIsHandedOverWhenTheProducerPauses() throws Exception {
+        Handoff handoff = Transport.QUEUE.create(1024);
+        CountDownLatch received = new CountDownLatch(10);
+
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                for (long i = 0; i < 10; i++) {
+                    handoff.put(DataPoint.create(VTLObject.of(i)));
+                }
+                // Blocked on the response, before the consumer waits for data.
+                assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+                handoff.end();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+        });
+        Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(handoff, producer);
+
+        CompletableFuture<Long> consumer = CompletableFuture.supplyAsync(() ->
+                StreamSupport.stream(spliterator, false).peek(dataPoint -> received.countDown()).count()
+        );
+        assertThat(consumer.get(10, TimeUnit.SECONDS)).isEqualTo(10);
+        producer.get();
+    }
+
+    @Test
+    public void testWaitingConsumerIsInterrupted() throws Exception {
+        for (Transport transport : Transport.values()) {
+            Handoff handoff = transport.create(16);
+            CompletableFuture<Void> producer = new CompletableFuture<>();
+            Thread consumer = Thread.currentThread();
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                consumer.interrupt();
+            });
+            Spliterator<DataPoint> spliterator = new BlockingQueueSpliterator(handoff, producer);
+
+            assertThatThrownBy(() -> spliterator.tryAdvance(dataPoint -> {
+            })).hasMessage("stream interrupted");
+            assertThat(producer.isCancelled()).isTrue();
+        }
+    }
+}
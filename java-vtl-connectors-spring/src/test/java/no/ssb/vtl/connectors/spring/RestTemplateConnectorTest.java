@@ -22,7 +22,11 @@ package no.ssb.vtl.connectors.spring;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
 import no.ssb.vtl.connectors.spring.converters.DataHttpConverter;
+import no.ssb.vtl.connectors.utils.Revalidatable;
+import no.ssb.vtl.connectors.utils.Validators;
 import no.ssb.vtl.model.Component;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.DataStructure;
@@ -31,22 +35,32 @@ import no.ssb.vtl.model.VtlOrdering;
 import org.junit.Test;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpResponse;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static com.google.common.io.Resources.getResource;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 /**
@@ -102,6 +116,158 @@ public class RestTemplateConnectorTest {
 
     }
 
+    @Test
+    public void testRevalidation() throws Exception {
+
+        RestTemplate template = new RestTemplate();
+        MockRestServiceServer mockServer = MockRestServiceServer.createServer(template);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"v1\"");
+        InputStream inputStream = getResource("ssb.dataset.data+json;version=2.json").openStream();
+        mockServer.expect(
+                requestTo("dataset")
+        ).andRespond(
+                withSuccess(new InputStreamResource(inputStream),
+                        MediaType.parseMediaType("application/ssb.dataset.data+json;version=2")
+                ).headers(headers)
+        );
+        mockServer.expect(
+                requestTo("dataset")
+        ).andExpect(
+                header(HttpHeaders.IF_NONE_MATCH, "\"v1\"")
+        ).andRespond(
+                withStatus(HttpStatus.NOT_MODIFIED)
+        );
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        template.getMessageConverters().add(
+                0, new DataHttpConverter(mapper)
+        );
+
+        RestTemplateConnector restTemplateConnector = new RestTemplateConnector(
+                template,
+                Executors.newSingleThreadExecutor()
+        );
+
+        Dataset dataset = restTemplateConnector.getDataset("dataset");
+        try (Stream<DataPoint> data = dataset.getData()) {
+            data.forEach(dataPoint -> {
+            });
+        }
+
+        Revalidatable revalidatable = (Revalidatable) dataset;
+        assertThat(revalidatable.getValidators()).contains(Validators.create("\"v1\"", null));
+        assertThat(revalidatable.isNotModified(revalidatable.getValidators().get())).isTrue();
+        mockServer.verify();
+    }
+
+    @Test
+    public void testPublisherSignalsUpstreamFailure() throws Exception {
+        PartialInputStream body = new PartialInputStream(true);
+        RestTemplateConnector restTemplateConnector = new RestTemplateConnector(
+                createTemplate(body),
+                Executors.newCachedThreadPool()
+        );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        StreamPublisherTest.RecordingSubscriber<DataPoint> subscriber = new StreamPublisherTest.RecordingSubscriber<>();
+        restTemplateConnector.getPublisher("dataset", executor).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertThat(subscriber.terminated.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.received).hasSize(2);
+        assertThat(subscriber.error.get()).hasRootCauseInstanceOf(IOException.class);
+        assertThat(subscriber.completed.get()).isFalse();
+        // The failure did not leak to the thread of the publisher.
+        assertThat(executor.submit(() -> Thread.currentThread().isInterrupted()).get(5, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Test
+    public void testPublisherCancelReleasesStalledUpstream() throws Exception {
+        PartialInputStream body = new PartialInputStream(false);
+        RestTemplateConnector restTemplateConnector = new RestTemplateConnector(
+                createTemplate(body),
+                Executors.newCachedThreadPool()
+        );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        StreamPublisherTest.RecordingSubscriber<DataPoint> subscriber = new StreamPublisherTest.RecordingSubscriber<>();
+        restTemplateConnector.getPublisher("dataset", executor).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        while (subscriber.received.size() < 2) {
+            Thread.sleep(10);
+        }
+        subscriber.subscription.cancel();
+
+        assertThat(body.closed.await(5, TimeUnit.SECONDS)).isTrue();
+        // The drain blocked on the stalled stream returned.
+        assertThat(executor.submit(() -> true).get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.terminated.getCount()).isEqualTo(1);
+    }
+
+    private static RestTemplate createTemplate(InputStream body) {
+        RestTemplate template = new RestTemplate();
+        MockRestServiceServer mockServer = MockRestServiceServer.createServer(template);
+        mockServer.expect(
+                requestTo("dataset")
+        ).andRespond(request -> {
+            MockClientHttpResponse response = new MockClientHttpResponse(body, HttpStatus.OK);
+            response.getHeaders().setContentType(MediaType.parseMediaType("application/ssb.dataset.data+json;version=2"));
+            return response;
+        });
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        template.getMessageConverters().add(
+                0, new DataHttpConverter(mapper)
+        );
+        return template;
+    }
+
+    /**
+     * The first two data points of the test data, then fails or blocks until closed.
+     */
+    private static final class PartialInputStream extends InputStream {
+
+        private final InputStream prefix;
+        private final boolean fail;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private PartialInputStream(boolean fail) throws IOException {
+            String data = Resources.toString(getResource("ssb.dataset.data+json;version=2.json"), StandardCharsets.UTF_8);
+            String twoRows = data.substring(0, data.lastIndexOf('[', data.indexOf("\"Sweden\"")));
+            this.prefix = new ByteArrayInputStream(twoRows.getBytes(StandardCharsets.UTF_8));
+            this.fail = fail;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (prefix.available() > 0)
+                return prefix.read(b, off, len);
+            if (fail)
+                throw new IOException("connection reset");
+            try {
+                closed.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
     @Test
     public void testOrder() throws Exception {
 
@@ -158,4 +324,19 @@ public class RestTemplateConnectorTest {
 
     }
 
+
+    @Test
+    public void testBinaryMediaTypesArePreferred() {
+        MediaType json = MediaType.parseMediaType("application/ssb.dataset.data+json;version=2");
+        MediaType smile = MediaType.parseMediaType("application/ssb.dataset.data+smile;version=2");
+        MediaType any = MediaType.ALL;
+
+        assertThat(RestTemplateConnector.preferBinary(Lists.newArrayList(json, any, smile)))
+                .containsExactly(smile, json, any);
+        MediaType arrow = MediaType.parseMediaType("application/vnd.apache.arrow.stream");
+        assertThat(RestTemplateConnector.preferBinary(Lists.newArrayList(json, arrow, smile)))
+                .containsExactly(arrow, smile, json);
+        assertThat(RestTemplateConnector.preferBinary(Lists.newArrayList(json, any)))
+                .containsExactly(json, any);
+    }
 }
@@ -0,0 +1,133 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamPublisherTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @Test
+    public void testElementsAreEmittedOnDemand() throws Exception {
+        AtomicBoolean opened = new AtomicBoolean();
+        AtomicBoolean closed = new AtomicBoolean();
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> {
+            opened.set(true);
+            return IntStream.range(0, 100).boxed().onClose(() -> closed.set(true));
+        }, executor);
+
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>();
+        publisher.subscribe(subscriber);
+        // Nothing is read before the first request.
+        Thread.sleep(50);
+        assertThat(opened.get()).isFalse();
+
+        subscriber.subscription.request(10);
+        Thread.sleep(50);
+        assertThat(subscriber.received).hasSize(10);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertThat(subscriber.terminated.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.received).isEqualTo(IntStream.range(0, 100).boxed().collect(Collectors.toList()));
+        assertThat(subscriber.completed.get()).isTrue();
+        assertThat(closed.get()).isTrue();
+    }
+
+    @Test
+    public void testCancelClosesTheStream() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(
+                () -> Stream.iterate(0, i -> i + 1).onClose(closed::countDown), executor);
+
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(5);
+        while (subscriber.received.size() < 5) {
+            Thread.sleep(10);
+        }
+        subscriber.subscription.cancel();
+
+        assertThat(closed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.received).hasSize(5);
+        assertThat(subscriber.completed.get()).isFalse();
+        assertThat(subscriber.error.get()).isNull();
+    }
+
+    @Test
+    public void testInvalidRequestIsAnError() throws Exception {
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(() -> Stream.of(1, 2, 3), executor);
+
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertThat(subscriber.terminated.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error.get()).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    static class RecordingSubscriber<T> implements Subscriber<T> {
+
+        final List<T> received = new CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean completed = new AtomicBoolean();
+        final CountDownLatch terminated = new CountDownLatch(1);
+        volatile Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T element) {
+            received.add(element);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.set(true);
+            terminated.countDown();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package no.ssb.vtl.connectors.spring;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import no.ssb.vtl.model.DataPoint;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Compares the {@link Transport}s of the {@link RestTemplateConnector}: the number of data points
+ * per second handed over from a producer to a consumer thread, and the latency of a single data point
+ * handed over to a waiting consumer (the latency to the first row of a response).
+ * <p>
+ * Not a unit test, run the main method with the test class path:
+ * <pre>
+ * java -cp ... no.ssb.vtl.connectors.spring.TransportBenchmark [rows] [latency samples]
+ * </pre>
+ */
+public final class TransportBenchmark {
+
+    private static final int BUFFER_SIZE = RestTemplateConnector.DEFAULT_BUFFER_SIZE;
+    private static final int DRAIN_SIZE = 1024;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    private final ExecutorService producer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transport-benchmark-producer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DataPoint[] rows;
+    private final int latencySamples;
+
+    private TransportBenchmark(int rowCount, int latencySamples) {
+        this.rows = new DataPoint[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            rows[i] = DataPoint.create("id" + i, (long) i);
+        }
+        this.latencySamples = latencySamples;
+    }
+
+    public static void main(String... args) throws Exception {
+        int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int latencySamples = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        TransportBenchmark benchmark = new TransportBenchmark(rowCount, latencySamples);
+
+        System.out.println(format("%d rows, %d latency samples, %d processors, %s",
+                rowCount, latencySamples, Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.version")));
+        System.out.println(format("%-18s %15s %18s %18s", "transport", "rows/s (median)",
+                "first row p50 (us)", "first row p99 (us)"));
+        for (Transport transport : Transport.values()) {
+            double throughput = benchmark.throughput(transport);
+            long[] latencies = benchmark.latencies(transport);
+            System.out.println(format("%-18s %,15.0f %18.1f %18.1f", transport, throughput,
+                    latencies[latencies.length / 2] / 1e3, latencies[latencies.length * 99 / 100] / 1e3));
+        }
+        benchmark.producer.shutdownNow();
+    }
+
+    /**
+     * Returns the median number of data points per second over the rounds.
+     */
+    private double throughput(Transport transport) throws Exception {
+        double[] results = new double[ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < ROUNDS; round++) {
+            Handoff handoff = transport.create(BUFFER_SIZE);
+            long[] count = {0};
+            long start = System.nanoTime();
+            Future<?> produced = producer.submit(() -> {
+                for (DataPoint row : rows) {
+                    handoff.put(row);
+                }
+                handoff.end();
+                return null;
+            });
+            long consumed = 0;
+            int drained;
+            while ((drained = handoff.drainTo(dataPoint -> count[0]++, DRAIN_SIZE)) >= 0) {
+                consumed += drained;
+            }
+            long elapsed = System.nanoTime() - start;
+            produced.get();
+            if (consumed != rows.length || count[0] != rows.length)
+                throw new AssertionError(format("%s handed over %d of %d rows", transport, consumed, rows.length));
+            if (round >= 0)
+                results[round] = rows.length * 1e9 / elapsed;
+        }
+        Arrays.sort(results);
+        return results[ROUNDS / 2];
+    }
+
+    /**
+     * Returns the sorted latencies, in nanoseconds, of a data point put while the consumer waits.
+     */
+    private long[] latencies(Transport transport) throws Exception {
+        long[] latencies = new long[latencySamples];
+        for (int sample = -latencySamples / 10; sample < latencySamples; sample++) {
+            Handoff handoff = transport.create(BUFFER_SIZE);
+            AtomicLong sentAt = new AtomicLong();
+            Future<?> produced = producer.submit(() -> {
+                // Let the consumer start waiting.
+                TimeUnit.MICROSECONDS.sleep(200);
+                sentAt.set(System.nanoTime());
+                handoff.put(rows[0]);
+                return null;
+            });
+            long[] receivedAt = new long[1];
+            handoff.drainTo(dataPoint -> receivedAt[0] = System.nanoTime(), 1);
+            produced.get();
+            handoff.abort();
+            if (sample >= 0)
+                latencies[sample] = receivedAt[0] - sentAt.get();
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+}
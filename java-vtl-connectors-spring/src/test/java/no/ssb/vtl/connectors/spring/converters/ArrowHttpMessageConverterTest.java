@@ -0,0 +1,148 @@
+package no.ssb.vtl.connectors.spring.converters;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Spring connector
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.TypeToken;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.Dataset;
+import no.ssb.vtl.model.VTLObject;
+import org.apache.arrow.memory.RootAllocator;
+import org.junit.Test;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static no.ssb.vtl.connectors.spring.converters.ArrowHttpMessageConverter.APPLICATION_ARROW_STREAM;
+import static no.ssb.vtl.connectors.spring.converters.DatasetHttpMessageConverterTest.loadFile;
+import static no.ssb.vtl.model.Component.Role.IDENTIFIER;
+import static no.ssb.vtl.model.Component.Role.MEASURE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ArrowHttpMessageConverterTest {
+
+    private static final TypeToken<Stream<DataPoint>> STREAM_TYPE = new TypeToken<Stream<DataPoint>>() {
+    };
+
+    private final ArrowHttpMessageConverter converter = new ArrowHttpMessageConverter(new RootAllocator(Long.MAX_VALUE), 2);
+
+    @Test
+    public void testCanReadAndWrite() {
+        assertThat(converter.canRead(null, null, APPLICATION_ARROW_STREAM)).isFalse();
+        assertThat(converter.canWrite(null, null, APPLICATION_ARROW_STREAM)).isFalse();
+
+        assertThat(converter.canRead(Dataset.class, APPLICATION_ARROW_STREAM)).isTrue();
+        assertThat(converter.canRead(STREAM_TYPE.getType(), null, APPLICATION_ARROW_STREAM)).isTrue();
+        assertThat(converter.canWrite(Dataset.class, APPLICATION_ARROW_STREAM)).isTrue();
+        assertThat(converter.canWrite(Dataset.class, DatasetHttpMessageConverter.APPLICATION_DATASET_JSON)).isFalse();
+    }
+
+    @Test
+    public void testWrittenDatasetCanBeRead() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        DatasetHttpMessageConverter jsonConverter = new DatasetHttpMessageConverter(mapper);
+        Dataset original = (Dataset) jsonConverter.read(Dataset.class, loadFile("ssb.dataset+json;version=2.json"));
+
+        // The columns are written in the same order as the json converter.
+        DataStructure structure = DatasetHttpMessageConverter.sortDataStructure(original.getDataStructure());
+        List<DataPoint> expected = ((Dataset) jsonConverter.read(Dataset.class, loadFile("ssb.dataset+json;version=2.json")))
+                .getData().collect(Collectors.toList());
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(original, APPLICATION_ARROW_STREAM, outputMessage);
+
+        Dataset result = (Dataset) converter.read(Dataset.class, new MockHttpInputMessage(outputMessage.getBodyAsBytes()));
+        assertThat(result.getDataStructure().keySet()).containsExactlyElementsOf(structure.keySet());
+        for (Map.Entry<String, Component> entry : structure.entrySet()) {
+            Component component = result.getDataStructure().get(entry.getKey());
+            assertThat(component.getRole()).isEqualTo(entry.getValue().getRole());
+            assertThat(component.getType()).isEqualTo(entry.getValue().getType());
+        }
+
+        try (Stream<DataPoint> data = result.getData()) {
+            List<DataPoint> actual = data.collect(Collectors.toList());
+            assertThat(actual).hasSameSizeAs(expected);
+            for (int row = 0; row < expected.size(); row++) {
+                for (String column : structure.keySet()) {
+                    int expectedIndex = original.getDataStructure().indexOf(column);
+                    int actualIndex = result.getDataStructure().indexOf(column);
+                    assertThat(actual.get(row).get(actualIndex))
+                            .isEqualTo(expected.get(row).get(expectedIndex));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNumbersKeepTheirType() throws Exception {
+        DataStructure structure = DataStructure.builder()
+                .put("id", IDENTIFIER, String.class)
+                .put("value", MEASURE, Number.class)
+                .build();
+        Dataset original = new DatasetHttpMessageConverterTest.TestDataset(structure, ImmutableList.of(
+                ImmutableMap.of("id", "a", "value", 1.0),
+                ImmutableMap.of("id", "b", "value", 1L),
+                ImmutableMap.of("id", "c", "value", 2.5)
+        ));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(original, APPLICATION_ARROW_STREAM, outputMessage);
+
+        Dataset result = (Dataset) converter.read(Dataset.class, new MockHttpInputMessage(outputMessage.getBodyAsBytes()));
+        try (Stream<DataPoint> data = result.getData()) {
+            assertThat(data.map(point -> point.get(1).get()).collect(Collectors.toList()))
+                    .containsExactly(1.0, 1L, 2.5);
+        }
+    }
+
+    @Test
+    public void testDataCanOnlyBeReadOnce() throws Exception {
+        DataStructure structure = DataStructure.builder()
+                .put("id", IDENTIFIER, String.class)
+                .build();
+        Dataset original = new DatasetHttpMessageConverterTest.TestDataset(structure, ImmutableList.of(
+                ImmutableMap.of("id", "a")
+        ));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(original, APPLICATION_ARROW_STREAM, outputMessage);
+
+        Dataset result = (Dataset) converter.read(Dataset.class, new MockHttpInputMessage(outputMessage.getBodyAsBytes()));
+        try (Stream<DataPoint> data = result.getData()) {
+            assertThat(data.map(point -> point.get(0)).collect(Collectors.toList()))
+                    .containsExactly(VTLObject.of("a"));
+        }
+        assertThatThrownBy(result::getData)
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("only be read once");
+    }
+}
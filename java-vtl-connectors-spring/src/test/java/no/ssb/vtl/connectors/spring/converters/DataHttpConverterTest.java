@@ -20,7 +20,12 @@ package no.ssb.vtl.connectors.spring.converters;
  * =========================LICENSE_END==================================
  */
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.reflect.TypeToken;
 import no.ssb.vtl.model.DataPoint;
@@ -37,7 +42,12 @@ import org.springframework.mock.http.MockHttpOutputMessage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -99,6 +109,27 @@ public class DataHttpConverterTest {
         System.out.println(outputMessage.getBodyAsString());
     }
 
+    @Test
+    public void testWrittenDataCanBeRead() throws Exception {
+        List<DataPoint> data = Lists.newArrayList(
+                DataPoint.create("a", 1L, 1.5, true, Instant.ofEpochSecond(1, 500)),
+                DataPoint.create(null, 2L, null, false, Instant.ofEpochSecond(2)),
+                // Column types can change between rows.
+                DataPoint.create(3L, "b", 3.5, null, null)
+        );
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        converter.write(data.stream(), APPLICATION_SSB_DATASET_DATA_JSON_V2, outputMessage);
+
+        assertThat(outputMessage.getBodyAsString()).startsWith(
+                "[[{\"type\":\"STRING\",\"val\":\"a\"},{\"type\":\"INTEGER\",\"val\":1}"
+        );
+
+        HttpInputMessage message = new MockHttpInputMessage(outputMessage.getBodyAsBytes());
+        List<DataPoint> result = converter.read(TYPE.getType(), null, message).collect(toList());
+        assertThat(result).isEqualTo(data);
+    }
+
     @Test
     public void testReadDataVersion2() throws Exception {
         TypeToken<Stream<DataPoint>> typeToken = new TypeToken<Stream<DataPoint>>() {
@@ -140,6 +171,51 @@ public class DataHttpConverterTest {
                 );
     }
 
+    @Test
+    public void testReadValuesInAnyOrder() throws Exception {
+        String json = "[" +
+                "[{\"val\": 3, \"type\": \"INTEGER\"}, null, {\"type\": \"STRING\", \"val\": null}]," +
+                "[{\"type\": \"NUMBER\", \"val\": 2.5}, {\"type\": \"DATE\", \"val\": \"2001-01-01T00:00:00Z\"}]," +
+                "[{\"type\": \"NUMERIC\", \"val\": 1}, {\"type\": \"BOOLEAN\", \"val\": false}, {\"type\": \"STRING\", \"val\": \"a\"}]" +
+                "]";
+        HttpInputMessage message = new MockHttpInputMessage(json.getBytes(StandardCharsets.UTF_8));
+
+        List<DataPoint> result = converter.read(TYPE.getType(), null, message).collect(toList());
+
+        assertThat(result).extracting(point -> point.stream().map(VTLObject::get).collect(toList()))
+                .containsExactly(
+                        Arrays.asList(3L, null, null),
+                        Arrays.asList(2.5, parse("2001-01-01T00:00:00Z")),
+                        Arrays.asList(1.0, false, "a")
+                );
+    }
+
+    @Test
+    public void testReadValuesWithTheMapperTypes() throws Exception {
+        // Dates as days, and numbers as decimals.
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new SimpleModule().addDeserializer(Instant.class, new JsonDeserializer<Instant>() {
+            @Override
+            public Instant deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+                return LocalDate.parse(p.getText()).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+        }));
+        mapper.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+        DataHttpConverter converter = new DataHttpConverter(mapper);
+
+        String json = "[" +
+                "[{\"type\": \"DATE\", \"val\": \"2001-01-01\"}, {\"type\": \"NUMBER\", \"val\": 1.5}]" +
+                "]";
+        HttpInputMessage message = new MockHttpInputMessage(json.getBytes(StandardCharsets.UTF_8));
+
+        List<DataPoint> result = converter.read(TYPE.getType(), null, message).collect(toList());
+
+        assertThat(result).extracting(point -> point.stream().map(VTLObject::get).collect(toList()))
+                .containsExactly(
+                        Arrays.asList(parse("2001-01-01T00:00:00Z"), new BigDecimal("1.5"))
+                );
+    }
+
     @Test
     public void testCanRead() {
         softly.assertThat(
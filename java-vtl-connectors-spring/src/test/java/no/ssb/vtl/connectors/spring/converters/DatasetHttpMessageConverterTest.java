@@ -21,10 +21,13 @@ package no.ssb.vtl.connectors.spring.converters;
  */
 
 import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -33,6 +36,7 @@ import no.ssb.vtl.model.Component;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
+import no.ssb.vtl.model.VTLObject;
 import org.assertj.core.api.JUnitSoftAssertions;
 import org.assertj.core.util.Lists;
 import org.junit.Before;
@@ -45,12 +49,16 @@ import org.springframework.mock.http.MockHttpOutputMessage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.google.common.io.Resources.getResource;
@@ -122,6 +130,69 @@ public class DatasetHttpMessageConverterTest {
         System.out.println(result);
     }
 
+    @Test
+    public void testSmileRoundTrip() throws Exception {
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        smileMapper.registerModule(new JavaTimeModule());
+        DatasetHttpMessageConverter smileConverter = new DatasetHttpMessageConverter(smileMapper);
+
+        assertThat(smileConverter.getSupportedMediaTypes()).isEqualTo(DatasetHttpMessageConverter.SUPPORTED_SMILE_TYPES);
+        assertThat(smileConverter.canRead(Dataset.class, DatasetHttpMessageConverter.APPLICATION_DATASET_SMILE)).isTrue();
+        assertThat(smileConverter.canRead(Dataset.class, DatasetHttpMessageConverter.APPLICATION_DATASET_JSON)).isFalse();
+
+        Dataset original = (Dataset) converter.read(Dataset.class, loadFile("ssb.dataset+json;version=2" + ".json"));
+        List<DataPoint> originalData = original.getData().collect(Collectors.toList());
+
+        Dataset toWrite = (Dataset) converter.read(Dataset.class, loadFile("ssb.dataset+json;version=2" + ".json"));
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        smileConverter.write(toWrite, DatasetHttpMessageConverter.APPLICATION_DATASET_SMILE, outputMessage);
+
+        Dataset result = (Dataset) smileConverter.read(Dataset.class, new MockHttpInputMessage(outputMessage.getBodyAsBytes()));
+        assertThat(result.getDataStructure().keySet()).isEqualTo(original.getDataStructure().keySet());
+        assertThat(result.getData().collect(Collectors.toList())).isEqualTo(originalData);
+    }
+
+    @Test
+    public void testReadValuesWithColumnTypes() throws Exception {
+        HttpInputMessage message = loadFile("ssb.dataset+json;version=2" + ".json");
+
+        Dataset result = (Dataset) converter.read(Dataset.class, message);
+        List<DataPoint> data = result.getData().collect(Collectors.toList());
+
+        assertThat(data.get(0)).extracting(VTLObject::get).containsExactly(
+                Instant.parse("1970-01-01T00:02:03Z"), 0L, 0.0, 1L, 1.5, "Foo", false
+        );
+        assertThat(data.get(1)).extracting(VTLObject::get).containsExactly(
+                Instant.parse("1970-01-01T00:02:03.123Z"), -1L, -1.5, -1L, -1.5, "Bar", true
+        );
+    }
+
+    @Test
+    public void testReadNumbersWithTheMapperTypes() throws Exception {
+        // Untyped numbers as the mapper reads them.
+        for (String json : new String[]{"1", "-1.5", "1234567890123"}) {
+            for (DeserializationFeature feature : new DeserializationFeature[]{null,
+                    DeserializationFeature.USE_LONG_FOR_INTS, DeserializationFeature.USE_BIG_INTEGER_FOR_INTS,
+                    DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS}) {
+                ObjectMapper mapper = feature == null ? new ObjectMapper() : new ObjectMapper().enable(feature);
+                Object expected = mapper.readValue(json, Number.class);
+
+                JsonParser parser = mapper.getFactory().createParser(json);
+                Object value = ColumnCodec.create(Number.class, mapper).readValue(parser, parser.nextToken());
+                softly.assertThat(value).as("%s with %s", json, feature)
+                        .isEqualTo(expected).isExactlyInstanceOf(expected.getClass());
+            }
+        }
+
+        mapper.enable(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS, DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+        HttpInputMessage message = loadFile("ssb.dataset+json;version=2" + ".json");
+        Dataset result = (Dataset) new DatasetHttpMessageConverter(mapper).read(Dataset.class, message);
+
+        assertThat(result.getData().findFirst().get()).extracting(VTLObject::get).containsExactly(
+                Instant.parse("1970-01-01T00:02:03Z"), 0L, 0.0, BigInteger.ONE, new BigDecimal("1.5"), "Foo", false
+        );
+    }
+
     @Test
     public void testStructureOrderIsConsistent() throws IOException {
 
@@ -218,7 +289,7 @@ public class DatasetHttpMessageConverterTest {
         assertThat(written).isEqualTo(original);
     }
 
-    private static class TestDataset implements Dataset {
+    static class TestDataset implements Dataset {
 
         private final DataStructure structure;
         private final List<Map<String, Object>> data;
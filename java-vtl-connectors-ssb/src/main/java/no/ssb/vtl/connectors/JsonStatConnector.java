@@ -37,18 +37,30 @@ import no.ssb.jsonstat.JsonStatModule;
 import no.ssb.jsonstat.v2.DatasetBuildable;
 import no.ssb.jsonstat.v2.Dimension;
 import no.ssb.jsonstat.v2.Dimension.Roles;
+import no.ssb.vtl.connectors.utils.ForwardingDataset;
+import no.ssb.vtl.connectors.utils.Revalidatable;
+import no.ssb.vtl.connectors.utils.Validators;
 import no.ssb.vtl.model.Component;
 import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
 import no.ssb.vtl.model.StaticDataset;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.ResourceHttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -157,8 +169,61 @@ public abstract class JsonStatConnector implements Connector {
         return DataStructure.of(types, roles);
     }
 
+    /**
+     * Wrap the dataset so that the {@link no.ssb.vtl.connectors.utils.CachedConnector} can revalidate
+     * it with a conditional request to the given uri, using the validators of the response.
+     */
+    protected Dataset revalidatable(Dataset dataset, URI uri, HttpHeaders headers) {
+        long lastModified = headers.getLastModified();
+        Validators validators = Validators.create(
+                headers.getETag(),
+                lastModified >= 0 ? Instant.ofEpochMilli(lastModified) : null
+        );
+        return new RevalidatableDataset(dataset, uri, validators);
+    }
+
     public Dataset putDataset(String identifier, Dataset dataset) throws ConnectorException {
         throw new ConnectorException("not supported");
     }
+
+    private class RevalidatableDataset extends ForwardingDataset implements Revalidatable {
+
+        private final Dataset dataset;
+        private final URI uri;
+        private final Validators validators;
+
+        private RevalidatableDataset(Dataset dataset, URI uri, Validators validators) {
+            this.dataset = checkNotNull(dataset);
+            this.uri = checkNotNull(uri);
+            this.validators = checkNotNull(validators);
+        }
+
+        @Override
+        protected Dataset delegate() {
+            return dataset;
+        }
+
+        @Override
+        public Optional<Validators> getValidators() {
+            return Optional.of(validators);
+        }
+
+        @Override
+        public boolean isNotModified(Validators validators) {
+            try {
+                Boolean notModified = restTemplate.execute(uri, HttpMethod.GET, request -> {
+                    HttpHeaders headers = request.getHeaders();
+                    headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                    validators.getETag().ifPresent(headers::setIfNoneMatch);
+                    validators.getLastModified().ifPresent(lastModified ->
+                            headers.setIfModifiedSince(lastModified.toEpochMilli())
+                    );
+                }, response -> HttpStatus.NOT_MODIFIED.equals(response.getStatusCode()));
+                return Boolean.TRUE.equals(notModified);
+            } catch (HttpStatusCodeException hsce) {
+                return false;
+            }
+        }
+    }
 }
 
@@ -28,6 +28,7 @@ import com.google.common.collect.Sets;
 import no.ssb.jsonstat.v2.DatasetBuildable;
 import no.ssb.vtl.connectors.px.PxModule;
 import no.ssb.vtl.connectors.util.IdentifierConverter;
+import no.ssb.vtl.connectors.utils.VirtualThreadExecutor;
 import no.ssb.vtl.model.DataPoint;
 import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.DatapointNormalizer;
@@ -52,6 +53,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
@@ -72,7 +74,15 @@ public class PxApiConnector extends JsonStatConnector {
     private final List<String> baseUrls;
 
     public PxApiConnector(List<String> baseUrls) {
+        this(baseUrls, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Create a connector that executes the requests with the given executor.
+     */
+    public PxApiConnector(List<String> baseUrls, Executor executor) {
         checkNotNull(baseUrls);
+        checkNotNull(executor);
         this.baseUrls = baseUrls;
 
         // Add support for structure deserialization.
@@ -81,9 +91,7 @@ public class PxApiConnector extends JsonStatConnector {
         RestTemplate originalTemplate = getRestTemplate();
         SimpleClientHttpRequestFactory asyncClientHttpRequestFactory =
                 (SimpleClientHttpRequestFactory) originalTemplate.getRequestFactory();
-        asyncClientHttpRequestFactory.setTaskExecutor(new ConcurrentTaskExecutor(
-                Executors.newCachedThreadPool()
-        ));
+        asyncClientHttpRequestFactory.setTaskExecutor(new ConcurrentTaskExecutor(executor));
         asyncRestTemplate = new AsyncRestTemplate(
                 asyncClientHttpRequestFactory,
                 originalTemplate
@@ -91,6 +99,15 @@ public class PxApiConnector extends JsonStatConnector {
 
     }
 
+    /**
+     * Create a connector that executes the requests in virtual threads when the JDK supports
+     * them (see {@link VirtualThreadExecutor}), with at most <code>maxConcurrentRequests</code>
+     * requests executed at the same time.
+     */
+    public static PxApiConnector withVirtualThreads(List<String> baseUrls, int maxConcurrentRequests) {
+        return new PxApiConnector(baseUrls, VirtualThreadExecutor.create("px-api-connector", maxConcurrentRequests));
+    }
+
     @Override
     public boolean canHandle(String identifier) {
         for (String baseUrl : baseUrls) {
@@ -21,6 +21,7 @@ package no.ssb.vtl.connectors;
  */
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
 import java.util.Map;
 import no.ssb.jsonstat.v2.DatasetBuildable;
 import no.ssb.vtl.model.Dataset;
@@ -68,16 +69,18 @@ public class SsbApiConnector extends JsonStatConnector {
                 identifier = identifier.replace("http://data.ssb.no/api/v0/dataset/", "");
             }
             //http://data.ssb.no/api/v0/dataset/1106.json?lang=en;
+            URI uri = getRestTemplate().getUriTemplateHandler().expand(
+                    "http://data.ssb.no/api/v0/dataset/{id}.json?lang=en", identifier);
             ResponseEntity<Map<String, DatasetBuildable>> exchange = getRestTemplate().exchange(
-                    "http://data.ssb.no/api/v0/dataset/{id}.json?lang=en",
+                    uri,
                     HttpMethod.GET,
-                    null, ref, identifier);
+                    null, ref);
 
             if (!exchange.getBody().values().iterator().hasNext()) {
                 throw new NotFoundException(format("empty dataset returned for the identifier %s", identifier));
             }
     
-            return buildDataset(exchange);
+            return revalidatable(buildDataset(exchange), uri, exchange.getHeaders());
 
         } catch (RestClientException rce) {
             throw new ConnectorException(
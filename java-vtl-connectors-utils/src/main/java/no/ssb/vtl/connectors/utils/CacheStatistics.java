@@ -0,0 +1,86 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.google.common.cache.CacheStats;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A snapshot of the statistics of a cache of {@link CachedConnector}.
+ * <p>
+ * The {@link CacheStats} count the requests, loads and evictions. The load time includes reading
+ * the whole data from upstream. The size is the number of entries and the estimated bytes the
+ * size of the data they contain.
+ */
+public final class CacheStatistics {
+
+    private final CacheStats stats;
+    private final long size;
+    private final long estimatedBytes;
+
+    private CacheStatistics(CacheStats stats, long size, long estimatedBytes) {
+        this.stats = checkNotNull(stats);
+        this.size = size;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public static CacheStatistics create(CacheStats stats, long size, long estimatedBytes) {
+        return new CacheStatistics(stats, size, estimatedBytes);
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    public double getHitRate() {
+        return stats.hitRate();
+    }
+
+    /**
+     * Returns the average time spent loading an entry, in nanoseconds.
+     */
+    public double getAverageLoadPenalty() {
+        return stats.averageLoadPenalty();
+    }
+
+    public long getEvictionCount() {
+        return stats.evictionCount();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("stats", stats)
+                .add("size", size)
+                .add("estimatedBytes", estimatedBytes)
+                .toString();
+    }
+}
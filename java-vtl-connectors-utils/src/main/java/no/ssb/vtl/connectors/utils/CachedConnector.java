@@ -23,51 +23,149 @@ package no.ssb.vtl.connectors.utils;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.ImmutableList;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import no.ssb.vtl.connectors.Connector;
 import no.ssb.vtl.connectors.ConnectorException;
 import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
 import no.ssb.vtl.model.Filtering;
 import no.ssb.vtl.model.Ordering;
+import no.ssb.vtl.model.VTLObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
 
 /**
  * A {@link Connector} that saves data in a cache.
+ * <p>
+ * The data caches can be bounded by an estimated size in bytes (see {@link Builder#maximumWeight(long)})
+ * instead of a number of entries. Data evicted because of the size limit can be moved to a second tier
+ * of memory mapped files (see {@link Builder#offHeapTier(Path, long)}), and all the data can be kept
+ * in a directory that survives restarts (see {@link Builder#persistent(Path, Duration)}).
+ * <p>
+ * Datasets that are {@link Revalidatable} can be revalidated with a conditional request instead of
+ * being downloaded again (see {@link Builder#revalidateAfter(Duration)}), and refreshed in the background
+ * before they become stale (see {@link Builder#refreshAhead(Duration, Predicate)}).
+ * <p>
+ * The statistics of the caches, including their estimated size, are available with {@link #getStatistics()}
+ * and, per identifier prefix, with {@link #getStatisticsByPrefix()}.
  */
 public abstract class CachedConnector extends ForwardingConnector {
 
     private static final Logger log = LoggerFactory.getLogger(CachedConnector.class);
 
+    // Rows of a shared load kept in memory for the readers, the following ones are spilled.
+    private static final int SHARED_LOAD_LIMIT = 1 << 16;
+    private static final Path SPILL_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"));
+
     private final Cache<String, CacheProxyDataset> datasetCache;
-    private final Cache<String, ImmutableList<DataPoint>> sortableCache;
-    private final Cache<SortedKey, ImmutableList<DataPoint>> sortedCache;
+    private final Cache<String, ColumnarData> sortableCache;
+    private final Cache<SortedKey, ColumnarData> sortedCache;
+    // The orderings in the sorted cache, by identifier.
+    private final ConcurrentMap<String, Set<Ordering>> sortedOrderings = new ConcurrentHashMap<>();
+    private final MappedDataTier offHeapTier;
+    private final PersistentDataStore persistentStore;
+    private final long revalidateAfterNanos;
+    private final long refreshAheadNanos;
+    private final Ticker ticker;
+    private final Predicate<String> refreshAhead;
+    private final Executor refreshExecutor;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final StatisticsRecorder recorder;
 
     private CachedConnector(CacheBuilder<Object, Object> cacheSpec) {
         checkNotNull(cacheSpec);
         this.datasetCache = cacheSpec.recordStats().build();
         this.sortableCache = cacheSpec.recordStats().build();
         this.sortedCache = cacheSpec.recordStats().build();
+        this.offHeapTier = null;
+        this.persistentStore = null;
+        this.revalidateAfterNanos = -1;
+        this.refreshAheadNanos = -1;
+        this.ticker = Ticker.systemTicker();
+        this.refreshAhead = identifier -> false;
+        this.refreshExecutor = null;
+        this.recorder = new StatisticsRecorder(null);
     }
 
     private CachedConnector() {
         this.datasetCache = CacheBuilder.newBuilder().recordStats().build();
         this.sortableCache = CacheBuilder.newBuilder().recordStats().build();
         this.sortedCache = CacheBuilder.newBuilder().recordStats().build();
+        this.offHeapTier = null;
+        this.persistentStore = null;
+        this.revalidateAfterNanos = -1;
+        this.refreshAheadNanos = -1;
+        this.ticker = Ticker.systemTicker();
+        this.refreshAhead = identifier -> false;
+        this.refreshExecutor = null;
+        this.recorder = new StatisticsRecorder(null);
+    }
+
+    private CachedConnector(Builder builder) {
+        this.recorder = new StatisticsRecorder(builder.statisticsPrefix);
+        this.offHeapTier = builder.newOffHeapTier();
+        this.persistentStore = builder.newPersistentStore();
+        this.revalidateAfterNanos = builder.revalidateAfter != null ? builder.revalidateAfter.toNanos() : -1;
+        this.refreshAheadNanos = builder.refreshAhead != null ? builder.refreshAhead.toNanos() : -1;
+        this.ticker = builder.ticker;
+        this.refreshAhead = builder.refreshAheadIdentifiers;
+        this.refreshExecutor = builder.newRefreshExecutor();
+        this.datasetCache = builder.newCacheBuilder().recordStats().build();
+
+        // The budget is split in two halves, one for the sortable and one for the sorted cache.
+        long maximumWeight = builder.maximumWeight / 2;
+        this.sortableCache = builder.<String>newWeightedCacheBuilder("sortable", maximumWeight, offHeapTier, recorder,
+                key -> { }).recordStats().build();
+        this.sortedCache = builder.<SortedKey>newWeightedCacheBuilder("sorted", maximumWeight, offHeapTier, recorder,
+                key -> forgetOrdering(sortedOrderings, key)).recordStats().build();
     }
 
     public static CachedConnector create(Connector connector) {
@@ -88,17 +186,173 @@ public abstract class CachedConnector extends ForwardingConnector {
         };
     }
 
+    public static Builder builder(Connector connector) {
+        return new Builder(connector);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the dataset, sortable and sorted caches, and of
+     * the off-heap tier if configured.
+     */
+    public ImmutableMap<String, CacheStats> getCacheStats() {
+        ImmutableMap.Builder<String, CacheStats> stats = ImmutableMap.<String, CacheStats>builder()
+                .put("dataset", datasetCache.stats())
+                .put("sortable", sortableCache.stats())
+                .put("sorted", sortedCache.stats());
+        if (offHeapTier != null)
+            stats.put("offHeap", offHeapTier.stats());
+        return stats.build();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the dataset, sortable and sorted caches, and of
+     * the off-heap tier if configured.
+     * <p>
+     * Unlike {@link #getCacheStats()}, the statistics of the data caches include the loads from upstream
+     * and the estimated size of the data in bytes (the size of the files for the off-heap tier).
+     */
+    public ImmutableMap<String, CacheStatistics> getStatistics() {
+        ImmutableMap.Builder<String, CacheStatistics> statistics = ImmutableMap.<String, CacheStatistics>builder()
+                .put("dataset", CacheStatistics.create(datasetCache.stats(), datasetCache.size(), 0))
+                .put("sortable", recorder.snapshot(sortableCache, recorder.sortableLoads))
+                .put("sorted", recorder.snapshot(sortedCache, recorder.sortedLoads));
+        if (offHeapTier != null) {
+            long bytes = offHeapTier.fileSizes().values().stream().mapToLong(Long::longValue).sum();
+            statistics.put("offHeap", CacheStatistics.create(offHeapTier.stats(), offHeapTier.size(), bytes));
+        }
+        return statistics.build();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the data caches grouped by identifier prefix
+     * (see {@link Builder#statisticsPrefix(Function)}), empty if no prefix function was given.
+     * <p>
+     * The statistics count the requests, loads and evictions of the data of the datasets with
+     * the same prefix in all the tiers.
+     */
+    public ImmutableMap<String, CacheStatistics> getStatisticsByPrefix() {
+        Map<Object, Long> bytes = new HashMap<>();
+        sortableCache.asMap().forEach((key, data) -> bytes.put(key, data.estimateSize()));
+        sortedCache.asMap().forEach((key, data) -> bytes.put(key, data.estimateSize()));
+        if (offHeapTier != null)
+            offHeapTier.fileSizes().forEach((key, size) -> bytes.merge(key, size, Long::sum));
+        return recorder.snapshotByPrefix(bytes);
+    }
+
     @Override
     public Dataset getDataset(String identifier) throws ConnectorException {
+        // Does not record stats.
+        CacheProxyDataset cached = datasetCache.asMap().get(identifier);
+        if (cached != null && revalidateAfterNanos > 0) {
+            if (refreshAhead.test(identifier)) {
+                // Serve the cached dataset, stale or not, while it is refreshed.
+                if (cached.isFresh(refreshAheadNanos))
+                    return cached;
+                scheduleRefresh(identifier, cached);
+                return cached;
+            }
+            if (!cached.isFresh(0) && !cached.revalidate(revalidateAfterNanos)) {
+                log.debug("{} was modified, invalidating the cached data", identifier);
+                invalidate(identifier);
+            }
+        }
+        return getCachedDataset(identifier);
+    }
+
+    private void scheduleRefresh(String identifier, CacheProxyDataset cached) {
+        if (!refreshing.add(identifier))
+            return;
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh(identifier, cached);
+                } catch (Exception e) {
+                    log.warn("could not refresh {}", identifier, e);
+                } finally {
+                    refreshing.remove(identifier);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            refreshing.remove(identifier);
+            log.debug("refresh of {} rejected", identifier);
+        }
+    }
+
+    /**
+     * Revalidate the dataset or load its data again, replacing the cached data once loaded.
+     */
+    private void refresh(String identifier, CacheProxyDataset cached) throws ConnectorException {
+        if (cached.revalidate(revalidateAfterNanos))
+            return;
+
+        log.debug("refreshing {}", identifier);
+        CacheProxyDataset fresh = createCacheProxyDataset(identifier, super.getDataset(identifier));
+        ColumnarData data = fresh.loadData();
+        // The sorted data derived from the previous data is dropped along with it, and will be
+        // sorted again from the new data.
+        synchronized (this) {
+            invalidateSorted(identifier);
+            fresh.put(sortableCache, identifier, data);
+            datasetCache.put(identifier, fresh);
+        }
+    }
+
+    /**
+     * Remove the dataset and all its data from the caches.
+     */
+    private void invalidate(String identifier) {
+        datasetCache.invalidate(identifier);
+        sortableCache.invalidate(identifier);
+        if (offHeapTier != null)
+            offHeapTier.invalidate(identifier);
+        if (persistentStore != null)
+            persistentStore.invalidate(identifier);
+        invalidateSorted(identifier);
+    }
+
+    private void invalidateSorted(String identifier) {
+        sortedCache.asMap().keySet().removeIf(key -> key.identifier.equals(identifier));
+        sortedOrderings.remove(identifier);
+        if (offHeapTier != null) {
+            offHeapTier.invalidateIf(key -> key instanceof SortedKey
+                    && ((SortedKey) key).identifier.equals(identifier));
+        }
+        if (persistentStore != null)
+            persistentStore.invalidateOrderings(identifier);
+    }
+
+    private CacheProxyDataset getCachedDataset(String identifier) throws ConnectorException {
         try {
             return datasetCache.get(identifier, () -> {
-                Dataset dataset = super.getDataset(identifier);
-                return new CacheProxyDataset(identifier, sortableCache, sortedCache) {
-                    @Override
-                    protected Dataset delegate() {
-                        return dataset;
-                    }
-                };
+                ColumnarData persisted = persistentStore != null
+                        ? persistentStore.getIfPresent(identifier, "")
+                        : null;
+                if (persisted != null) {
+                    // Serve the persisted data right away, the delegate is only needed for new orderings.
+                    Supplier<Dataset> dataset = Suppliers.memoize(() -> {
+                        try {
+                            return super.getDataset(identifier);
+                        } catch (ConnectorException ce) {
+                            throw new RuntimeException(format("could not get %s", identifier), ce);
+                        }
+                    });
+                    CacheProxyDataset proxy = new CacheProxyDataset(identifier, this) {
+                        @Override
+                        protected Dataset delegate() {
+                            return dataset.get();
+                        }
+
+                        @Override
+                        public DataStructure getDataStructure() {
+                            return persisted.getStructure();
+                        }
+                    };
+                    // Revalidate with the validators of the persisted data, not the ones of the delegate.
+                    proxy.validators = persistentStore.getValidators(identifier, "").orElse(null);
+                    return proxy;
+                }
+
+                return createCacheProxyDataset(identifier, super.getDataset(identifier));
             });
         } catch (ExecutionException e) {
             if (e.getCause() instanceof ConnectorException) {
@@ -109,6 +363,238 @@ public abstract class CachedConnector extends ForwardingConnector {
         }
     }
 
+    private CacheProxyDataset createCacheProxyDataset(String identifier, Dataset dataset) {
+        return new CacheProxyDataset(identifier, this) {
+            @Override
+            protected Dataset delegate() {
+                return dataset;
+            }
+        };
+    }
+
+    private static void forgetOrdering(ConcurrentMap<String, Set<Ordering>> orderings, SortedKey key) {
+        orderings.computeIfPresent(key.identifier, (identifier, set) -> {
+            set.remove(key.order);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Builder for {@link CachedConnector}s with size aware caches.
+     */
+    public static final class Builder {
+
+        private static final int REFRESH_QUEUE_SIZE = 16;
+
+        private final Connector connector;
+        private long maximumWeight = -1;
+        private Duration expireAfterWrite;
+        private Path offHeapDirectory;
+        private long offHeapMaximumSize;
+        private Path persistentDirectory;
+        private Duration persistentTimeToLive;
+        private Duration revalidateAfter;
+        private Duration refreshAhead;
+        private Predicate<String> refreshAheadIdentifiers = identifier -> false;
+        private Executor refreshExecutor;
+        private Function<String, String> statisticsPrefix;
+        private Ticker ticker = Ticker.systemTicker();
+
+        private Builder(Connector connector) {
+            this.connector = checkNotNull(connector);
+        }
+
+        /**
+         * Bound the data caches to an estimated size in bytes.
+         * <p>
+         * The weight of an entry is estimated from the {@link VTLObject}s it contains. The budget is
+         * split statically: the sortable (unsorted) data and the sorted data each get half of it, so
+         * one of the caches evicts when its half is full even if the other half is unused.
+         */
+        public Builder maximumWeight(long bytes) {
+            checkArgument(bytes > 0, "maximum weight must be greater than 0");
+            this.maximumWeight = bytes;
+            return this;
+        }
+
+        /**
+         * Consider the datasets stale after the given duration.
+         * <p>
+         * A stale dataset that is {@link Revalidatable} is checked with a conditional request: if it did
+         * not change it is considered fresh for the same duration again, otherwise (or if the dataset
+         * is not revalidatable) the dataset and its data are removed from the caches and fetched again.
+         * This should be used instead of {@link #expireAfterWrite(Duration)}.
+         */
+        public Builder revalidateAfter(Duration duration) {
+            checkArgument(!duration.isNegative() && !duration.isZero(), "duration must be positive");
+            this.revalidateAfter = duration;
+            return this;
+        }
+
+        /**
+         * Refresh the datasets accepted by the predicate in the background when they are
+         * requested less than the given duration before they become stale (see {@link #revalidateAfter(Duration)}).
+         * <p>
+         * The cached dataset is returned while it is refreshed, even if it is already stale. The data,
+         * and the data sorted from it, is replaced once the new data is loaded. The duration must be
+         * shorter than the one given to {@link #revalidateAfter(Duration)}.
+         */
+        public Builder refreshAhead(Duration duration, Predicate<String> identifiers) {
+            checkArgument(!duration.isNegative(), "duration must not be negative");
+            this.refreshAhead = duration;
+            this.refreshAheadIdentifiers = checkNotNull(identifiers);
+            return this;
+        }
+
+        /**
+         * The executor used to refresh the datasets. Defaults to a single thread with a bounded queue;
+         * refreshes rejected by the executor are skipped.
+         */
+        public Builder refreshExecutor(Executor executor) {
+            this.refreshExecutor = checkNotNull(executor);
+            return this;
+        }
+
+        private Executor newRefreshExecutor() {
+            if (refreshAhead == null)
+                return null;
+            if (refreshExecutor != null)
+                return refreshExecutor;
+            return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("cached-connector-refresh-%d")
+                            .setDaemon(true)
+                            .build()
+            );
+        }
+
+        /**
+         * Also record the statistics of the data caches per identifier prefix, as returned by
+         * the given function (the host of the identifiers for instance).
+         * <p>
+         * The number of distinct prefixes should be small since their statistics are never removed.
+         *
+         * @see CachedConnector#getStatisticsByPrefix()
+         */
+        public Builder statisticsPrefix(Function<String, String> prefix) {
+            this.statisticsPrefix = checkNotNull(prefix);
+            return this;
+        }
+
+        /**
+         * The time source of the revalidation and refresh windows and of {@link #expireAfterWrite(Duration)}.
+         * Defaults to {@link Ticker#systemTicker()}.
+         */
+        public Builder ticker(Ticker ticker) {
+            this.ticker = checkNotNull(ticker);
+            return this;
+        }
+
+        public Builder expireAfterWrite(Duration duration) {
+            this.expireAfterWrite = checkNotNull(duration);
+            return this;
+        }
+
+        /**
+         * Move the data evicted from the heap because of the {@link #maximumWeight(long)} to
+         * memory mapped files in the given directory.
+         * <p>
+         * The files are deleted when evicted from this tier. The size is the size of the files in bytes.
+         */
+        public Builder offHeapTier(Path directory, long maximumSize) {
+            checkArgument(maximumSize > 0, "maximum size must be greater than 0");
+            this.offHeapDirectory = checkNotNull(directory);
+            this.offHeapMaximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Also write the data to the given directory, and read it back after a restart.
+         * <p>
+         * The data is kept for the given duration. The entries written by a previous instance
+         * are available as soon as the connector is built.
+         */
+        public Builder persistent(Path directory, Duration timeToLive) {
+            checkArgument(!timeToLive.isNegative() && !timeToLive.isZero(), "time to live must be positive");
+            this.persistentDirectory = checkNotNull(directory);
+            this.persistentTimeToLive = timeToLive;
+            return this;
+        }
+
+        private PersistentDataStore newPersistentStore() {
+            if (persistentDirectory == null)
+                return null;
+            return new PersistentDataStore(persistentDirectory, persistentTimeToLive);
+        }
+
+        private MappedDataTier newOffHeapTier() {
+            if (offHeapDirectory == null)
+                return null;
+            checkState(maximumWeight > 0, "the off-heap tier requires a maximum weight");
+            return new MappedDataTier(offHeapDirectory, offHeapMaximumSize);
+        }
+
+        private CacheBuilder<Object, Object> newCacheBuilder() {
+            CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().ticker(ticker);
+            if (expireAfterWrite != null)
+                cacheBuilder.expireAfterWrite(expireAfterWrite.toNanos(), TimeUnit.NANOSECONDS);
+            return cacheBuilder;
+        }
+
+        private <K> CacheBuilder<K, ColumnarData> newWeightedCacheBuilder(String name, long maximumWeight,
+                                                                          MappedDataTier offHeapTier,
+                                                                          StatisticsRecorder recorder,
+                                                                          Consumer<K> onRemoved) {
+            CacheBuilder<Object, Object> cacheBuilder = newCacheBuilder();
+            RemovalListener<K, ColumnarData> logger = evictionLogger(name);
+            RemovalListener<K, ColumnarData> spill = offHeapTier != null ? offHeapTier.spillListener() : null;
+            RemovalListener<K, ColumnarData> listener = notification -> {
+                logger.onRemoval(notification);
+                if (notification.wasEvicted())
+                    recorder.recordEviction(notification.getKey());
+                if (spill != null)
+                    spill.onRemoval(notification);
+                if (notification.getCause() != RemovalCause.REPLACED)
+                    onRemoved.accept(notification.getKey());
+            };
+            if (maximumWeight <= 0)
+                return cacheBuilder.removalListener(listener);
+            // Guava splits the weight between segments, use only one so that a single large
+            // dataset can use the whole budget.
+            return cacheBuilder.maximumWeight(maximumWeight)
+                    .concurrencyLevel(1)
+                    .<K, ColumnarData>weigher(DataPointWeigher.INSTANCE)
+                    .removalListener(listener);
+        }
+
+        private static <K> RemovalListener<K, ColumnarData> evictionLogger(String name) {
+            return notification -> {
+                if (notification.wasEvicted() && log.isDebugEnabled()) {
+                    log.debug("evicted {} ({} rows, ~{} bytes) from the {} cache ({})",
+                            notification.getKey(), notification.getValue().size(),
+                            notification.getValue().estimateSize(),
+                            name, notification.getCause()
+                    );
+                }
+            };
+        }
+
+        public CachedConnector build() {
+            if (refreshAhead != null) {
+                checkState(revalidateAfter != null, "refresh ahead requires revalidateAfter");
+                checkArgument(refreshAhead.compareTo(revalidateAfter) < 0,
+                        "refresh ahead (%s) must be shorter than revalidateAfter (%s)", refreshAhead, revalidateAfter);
+            }
+            return new CachedConnector(this) {
+                @Override
+                protected Connector delegate() {
+                    return connector;
+                }
+            };
+        }
+    }
+
     /**
      * Key for sorted values.
      */
@@ -144,16 +630,97 @@ public abstract class CachedConnector extends ForwardingConnector {
         }
     }
 
+    /**
+     * Records the loads of the data caches and, if a prefix function is given, the statistics
+     * per identifier prefix.
+     * <p>
+     * The hits, misses and evictions of the caches themselves are recorded by Guava.
+     */
+    private static final class StatisticsRecorder {
+
+        private final Function<String, String> prefix;
+        private final SimpleStatsCounter sortableLoads = new SimpleStatsCounter();
+        private final SimpleStatsCounter sortedLoads = new SimpleStatsCounter();
+        private final ConcurrentMap<String, SimpleStatsCounter> prefixes = new ConcurrentHashMap<>();
+
+        private StatisticsRecorder(Function<String, String> prefix) {
+            this.prefix = prefix;
+        }
+
+        private static String identifier(Object key) {
+            return key instanceof SortedKey ? ((SortedKey) key).identifier : (String) key;
+        }
+
+        private Optional<SimpleStatsCounter> prefixCounter(Object key) {
+            if (prefix == null)
+                return Optional.empty();
+            return Optional.of(prefixes.computeIfAbsent(prefix.apply(identifier(key)), p -> new SimpleStatsCounter()));
+        }
+
+        private void recordRequest(Object key, boolean hit) {
+            prefixCounter(key).ifPresent(counter -> {
+                if (hit)
+                    counter.recordHits(1);
+                else
+                    counter.recordMisses(1);
+            });
+        }
+
+        private void recordLoad(Object key, long nanos, boolean success) {
+            SimpleStatsCounter loads = key instanceof SortedKey ? sortedLoads : sortableLoads;
+            if (success)
+                loads.recordLoadSuccess(nanos);
+            else
+                loads.recordLoadException(nanos);
+            prefixCounter(key).ifPresent(counter -> {
+                if (success)
+                    counter.recordLoadSuccess(nanos);
+                else
+                    counter.recordLoadException(nanos);
+            });
+        }
+
+        private void recordEviction(Object key) {
+            prefixCounter(key).ifPresent(SimpleStatsCounter::recordEviction);
+        }
+
+        private CacheStatistics snapshot(Cache<?, ColumnarData> cache, SimpleStatsCounter loads) {
+            long bytes = cache.asMap().values().stream().mapToLong(ColumnarData::estimateSize).sum();
+            return CacheStatistics.create(cache.stats().plus(loads.snapshot()), cache.size(), bytes);
+        }
+
+        private ImmutableMap<String, CacheStatistics> snapshotByPrefix(Map<Object, Long> bytes) {
+            if (prefix == null)
+                return ImmutableMap.of();
+            Map<String, long[]> sizes = new HashMap<>();
+            bytes.forEach((key, size) -> {
+                long[] prefixSize = sizes.computeIfAbsent(prefix.apply(identifier(key)), p -> new long[2]);
+                prefixSize[0]++;
+                prefixSize[1] += size;
+            });
+            Map<String, CacheStatistics> statistics = new TreeMap<>();
+            for (String name : Sets.union(prefixes.keySet(), sizes.keySet())) {
+                SimpleStatsCounter counter = prefixes.get(name);
+                long[] size = sizes.getOrDefault(name, new long[2]);
+                CacheStats stats = counter != null ? counter.snapshot() : new SimpleStatsCounter().snapshot();
+                statistics.put(name, CacheStatistics.create(stats, size[0], size[1]));
+            }
+            return ImmutableSortedMap.copyOf(statistics);
+        }
+    }
+
     private static final class CacheSpliterator extends Spliterators.AbstractSpliterator<DataPoint> {
 
         private final Runnable callback;
+        private final Runnable onFailure;
         private final Spliterator<DataPoint> spliterator;
         private boolean hasMore = true;
 
-        private CacheSpliterator(Runnable callback, Spliterator<DataPoint> spliterator) {
+        private CacheSpliterator(Runnable callback, Runnable onFailure, Spliterator<DataPoint> spliterator) {
             super(spliterator.estimateSize(), spliterator.characteristics() /* TODO: check this */);
             this.spliterator = spliterator;
             this.callback = checkNotNull(callback);
+            this.onFailure = checkNotNull(onFailure);
         }
 
         @Override
@@ -161,7 +728,12 @@ public abstract class CachedConnector extends ForwardingConnector {
             if (!hasMore)
                 return false;
 
-            hasMore = spliterator.tryAdvance(action);
+            try {
+                hasMore = spliterator.tryAdvance(action);
+            } catch (RuntimeException re) {
+                onFailure.run();
+                throw re;
+            }
             if (!hasMore)
                 callback.run();
 
@@ -170,7 +742,12 @@ public abstract class CachedConnector extends ForwardingConnector {
 
         @Override
         public void forEachRemaining(Consumer<? super DataPoint> action) {
-            spliterator.forEachRemaining(action);
+            try {
+                spliterator.forEachRemaining(action);
+            } catch (RuntimeException re) {
+                onFailure.run();
+                throw re;
+            }
             callback.run();
         }
     }
@@ -178,60 +755,382 @@ public abstract class CachedConnector extends ForwardingConnector {
     protected static abstract class CacheProxyDataset extends ForwardingDataset {
 
         private final String identifier;
-        private final Cache<String, ImmutableList<DataPoint>> sortableCache;
-        private final Cache<SortedKey, ImmutableList<DataPoint>> sortedCache;
+        private final Cache<String, ColumnarData> sortableCache;
+        private final Cache<SortedKey, ColumnarData> sortedCache;
+        private final ConcurrentMap<String, Set<Ordering>> sortedOrderings;
+        private final MappedDataTier offHeapTier;
+        private final PersistentDataStore persistentStore;
+        private final StatisticsRecorder recorder;
+        // Guards the replacement of the data by a refresh.
+        private final Object lock;
+        private final Ticker ticker;
+        private volatile long validUntil;
+        // The validators of the cached data, null if unknown.
+        private volatile Validators validators;
+        private final ConcurrentMap<Object, SharedLoad> loads = new ConcurrentHashMap<>();
 
-        protected CacheProxyDataset(String identifier, Cache<String, ImmutableList<DataPoint>> sortableCache, Cache<SortedKey, ImmutableList<DataPoint>> sortedCache) {
+        protected CacheProxyDataset(String identifier, Cache<String, ColumnarData> sortableCache, Cache<SortedKey, ColumnarData> sortedCache) {
             this.identifier = checkNotNull(identifier);
             this.sortableCache = checkNotNull(sortableCache);
             this.sortedCache = checkNotNull(sortedCache);
+            this.sortedOrderings = new ConcurrentHashMap<>();
+            this.offHeapTier = null;
+            this.persistentStore = null;
+            this.recorder = new StatisticsRecorder(null);
+            this.lock = this;
+            this.ticker = Ticker.systemTicker();
+        }
+
+        private CacheProxyDataset(String identifier, CachedConnector connector) {
+            this.identifier = checkNotNull(identifier);
+            this.sortableCache = connector.sortableCache;
+            this.sortedCache = connector.sortedCache;
+            this.sortedOrderings = connector.sortedOrderings;
+            this.offHeapTier = connector.offHeapTier;
+            this.persistentStore = connector.persistentStore;
+            this.recorder = connector.recorder;
+            this.lock = connector;
+            this.ticker = connector.ticker;
+            this.validUntil = ticker.read() + connector.revalidateAfterNanos;
+        }
+
+        /**
+         * Returns true if the data will still be valid in the given amount of time.
+         */
+        private boolean isFresh(long inNanos) {
+            return ticker.read() + inNanos - validUntil < 0;
+        }
+
+        /**
+         * Reads all the data from the delegate, without putting it in the cache.
+         */
+        private ColumnarData loadData() {
+            long start = System.nanoTime();
+            ColumnarData.Builder builder = ColumnarData.builder();
+            try (Stream<DataPoint> data = delegate().getData()) {
+                data.forEach(builder::add);
+            } catch (RuntimeException re) {
+                recorder.recordLoad(identifier, System.nanoTime() - start, false);
+                throw re;
+            }
+            recorder.recordLoad(identifier, System.nanoTime() - start, true);
+            updateValidators();
+            return builder.build(delegate().getDataStructure());
+        }
+
+        /**
+         * Remember the validators of the data the delegate returned, if any.
+         */
+        private void updateValidators() {
+            Dataset dataset = delegate();
+            if (dataset instanceof Revalidatable) {
+                ((Revalidatable) dataset).getValidators()
+                        .filter(loaded -> !loaded.isEmpty())
+                        .ifPresent(loaded -> validators = loaded);
+            }
+        }
+
+        /**
+         * Check that the data of this dataset is still valid with a conditional request, using the
+         * validators of the cached data.
+         *
+         * @return false if the data must be fetched again.
+         */
+        private synchronized boolean revalidate(long revalidateAfterNanos) {
+            long now = ticker.read();
+            try {
+                // The data may have been loaded by another proxy.
+                if (validators == null)
+                    updateValidators();
+                Validators cached = validators;
+                if (cached == null)
+                    return false;
+                Dataset dataset = delegate();
+                if (!(dataset instanceof Revalidatable))
+                    return false;
+                if (!((Revalidatable) dataset).isNotModified(cached))
+                    return false;
+                validUntil = now + revalidateAfterNanos;
+                log.debug("{} was not modified ({})", identifier, cached);
+                return true;
+            } catch (RuntimeException re) {
+                log.warn("could not revalidate {}", identifier, re);
+                return false;
+            }
+        }
+
+        /**
+         * Look for the data on the heap first, then in the off-heap tier and in the persistent store.
+         */
+        private <K> ColumnarData getIfPresent(Cache<K, ColumnarData> cache, K key) {
+            ColumnarData data = cache.getIfPresent(key);
+            if (data == null && offHeapTier != null)
+                data = offHeapTier.getIfPresent(key);
+            if (data == null && persistentStore != null) {
+                data = persistentStore.getIfPresent(identifier, orderingKey(key));
+                // Keep the mapped data on the heap, without writing it again.
+                if (data != null)
+                    cache(cache, key, data);
+            }
+            recorder.recordRequest(key, data != null);
+            return data;
         }
 
+        private <K> void put(Cache<K, ColumnarData> cache, K key, ColumnarData data) {
+            // The data in the off-heap tier, if any, is now stale.
+            if (offHeapTier != null)
+                offHeapTier.invalidate(key);
+            cache(cache, key, data);
+            if (persistentStore != null)
+                persistentStore.put(identifier, orderingKey(key), data, validators);
+        }
+
+        private <K> void cache(Cache<K, ColumnarData> cache, K key, ColumnarData data) {
+            cache.put(key, data);
+            if (key instanceof SortedKey) {
+                sortedOrderings.computeIfAbsent(identifier, id -> ConcurrentHashMap.newKeySet())
+                        .add(((SortedKey) key).order);
+            }
+        }
+
+        /**
+         * Returns the key of the ordering in the persistent store, empty for unsorted data.
+         */
+        private static String orderingKey(Object key) {
+            if (!(key instanceof SortedKey))
+                return "";
+            Ordering order = ((SortedKey) key).order;
+            return order.columns().stream()
+                    .map(column -> column + " " + order.getDirection(column))
+                    .collect(Collectors.joining(","));
+        }
+
+        /**
+         * Returns a stream of the data of the given key, loaded from upstream.
+         * <p>
+         * Concurrent readers of a key that is not cached yet share the same load: upstream is read
+         * once and the readers tail the rows as they arrive. The data is put in the cache when the
+         * upstream stream is exhausted.
+         * <p>
+         * Each reader gets its own copy of the data points since they are mutable.
+         */
+        private <K> Stream<DataPoint> load(Cache<K, ColumnarData> cache, K key, Supplier<Stream<DataPoint>> upstream) {
+            SharedLoad load = loads.compute(key, (k, existing) -> {
+                if (existing == null || existing.data.isFailed())
+                    existing = new SharedLoad(key, upstream, data -> put(cache, key, data));
+                existing.readers.incrementAndGet();
+                return existing;
+            });
+            return StreamSupport.stream(load.data.get(), false)
+                    .map(DataPoint::create)
+                    .onClose(load::release);
+        }
 
         @Override
         public Stream<DataPoint> getData() {
-            ImmutableList<DataPoint> cachedData = sortableCache.getIfPresent(identifier);
+            ColumnarData cachedData = getIfPresent(sortableCache, identifier);
             if (cachedData != null)
-                return cachedData.stream().map(DataPoint::create);
+                return cachedData.stream();
 
-            // Compute the data.
-            ImmutableList.Builder<DataPoint> cacheDataBuilder = ImmutableList.builder();
-            Stream<DataPoint> stream = delegate().getData().peek(dataPoint -> {
-                cacheDataBuilder.add(DataPoint.create(dataPoint));
-            });
-
-            // Hook on the spliterator to know when the stream is finished.
-            return StreamSupport.stream(new CacheSpliterator(() -> {
-                sortableCache.put(identifier, cacheDataBuilder.build());
-            }, stream.spliterator()), false).onClose(stream::close);
+            return load(sortableCache, identifier, () -> delegate().getData());
         }
 
+        /**
+         * Returns the data filtered and projected from the cache if possible.
+         * <p>
+         * A {@link ColumnFiltering} uses the indexes of the identifier columns to find the candidate rows,
+         * and only the requested components (all of them if none are given) and the filtered columns are
+         * read from the cache; the other values are {@link VTLObject#NULL}.
+         * <p>
+         * Any other filtering is an opaque predicate that can read any column: the cached data points are
+         * read whole and tested one by one, without projection.
+         */
         @Override
         public Optional<Stream<DataPoint>> getData(Ordering orders, Filtering filtering, Set<String> components) {
-            Stream<DataPoint> ordered = getData(orders).orElseThrow(() -> new UnsupportedOperationException("could not"))
+            ColumnarData data = getCachedData(orders);
+            if (data == null) {
+                Stream<DataPoint> ordered = getData(orders).orElseThrow(() -> new UnsupportedOperationException("could not"))
+                        .filter(filtering);
+                return Optional.of(ordered);
+            }
+
+            if (!(filtering instanceof ColumnFiltering))
+                return Optional.of(data.stream().filter(filtering));
+
+            List<String> names = new ArrayList<>(data.getStructure().keySet());
+            boolean[] projected = new boolean[names.size()];
+            for (int i = 0; i < projected.length; i++) {
+                projected[i] = components == null || components.isEmpty() || components.contains(names.get(i));
+            }
+
+            // The filtered columns must be materialized as well.
+            ColumnFiltering columnFiltering = (ColumnFiltering) filtering;
+            boolean[] read = projected.clone();
+            for (String column : columnFiltering.getValues().keySet()) {
+                int index = names.indexOf(column);
+                if (index >= 0)
+                    read[index] = true;
+            }
+
+            Stream<DataPoint> stream = data.select(columnFiltering)
+                    .mapToObj(row -> data.get(row, read))
                     .filter(filtering);
-            return Optional.of(ordered);
+            if (!Arrays.equals(read, projected)) {
+                // Only the data points that passed the filtering.
+                stream = stream.peek(dataPoint -> {
+                    for (int i = 0; i < projected.length; i++) {
+                        if (!projected[i])
+                            dataPoint.set(i, VTLObject.NULL);
+                    }
+                });
+            }
+            return Optional.of(stream);
+        }
+
+        /**
+         * Returns the data in the given order from the caches, or null.
+         */
+        private ColumnarData getCachedData(Ordering order) {
+            ColumnarData sortedCachedData = getIfPresent(sortedCache, new SortedKey(identifier, order));
+            if (sortedCachedData != null)
+                return sortedCachedData;
+            return sortLocally(order);
+        }
+
+        /**
+         * Sort the data already in the caches instead of asking the delegate.
+         * <p>
+         * Sorted data whose ordering starts with the same columns is preferred since only the runs
+         * of equal rows need to be sorted; if the requested ordering is a prefix of a cached one,
+         * the cached data is used as is. Only the orderings cached for this identifier are considered.
+         *
+         * @return the sorted data or null if nothing is cached
+         */
+        private ColumnarData sortLocally(Ordering order) {
+            ColumnarData base = sortableCache.asMap().get(identifier);
+            ColumnarData sortedData = null;
+            List<String> sortedColumns = Collections.emptyList();
+            for (Ordering cachedOrder : sortedOrderings.getOrDefault(identifier, Collections.emptySet())) {
+                List<String> prefix = commonPrefix(cachedOrder, order);
+                if (prefix.size() <= sortedColumns.size())
+                    continue;
+                ColumnarData cachedData = sortedCache.asMap().get(new SortedKey(identifier, cachedOrder));
+                if (cachedData == null) {
+                    // The caches built from a CacheBuilder have no removal listener to keep the index up to date.
+                    forgetOrdering(sortedOrderings, new SortedKey(identifier, cachedOrder));
+                    continue;
+                }
+                sortedData = cachedData;
+                sortedColumns = prefix;
+            }
+
+            if (sortedData != null && sortedColumns.size() == order.columns().size())
+                return sortedData;
+
+            ColumnarData data = sortedData != null ? sortedData : getIfPresent(sortableCache, identifier);
+            if (data == null)
+                return null;
+
+            List<String> names = new ArrayList<>(data.getStructure().keySet());
+            int[] indices = sortedColumns.stream().mapToInt(names::indexOf).toArray();
+            ColumnarData result = data.sort(order, indices);
+            synchronized (lock) {
+                // Data sorted from data a refresh replaced in the meantime is not cached.
+                if (sortableCache.asMap().get(identifier) == base)
+                    put(sortedCache, new SortedKey(identifier, order), result);
+            }
+            return result;
+        }
+
+        private static List<String> commonPrefix(Ordering left, Ordering right) {
+            List<String> leftColumns = left.columns();
+            List<String> rightColumns = right.columns();
+            int size = 0;
+            while (size < leftColumns.size() && size < rightColumns.size()) {
+                String column = leftColumns.get(size);
+                if (!column.equals(rightColumns.get(size))
+                        || left.getDirection(column) != right.getDirection(column))
+                    break;
+                size++;
+            }
+            return leftColumns.subList(0, size);
         }
 
         @Override
         public Optional<Stream<DataPoint>> getData(Ordering order) {
-            SortedKey key = new SortedKey(identifier, order);
-            ImmutableList<DataPoint> sortedCachedData = sortedCache.getIfPresent(key);
-            if (sortedCachedData != null)
-                return Optional.of(sortedCachedData.stream().map(DataPoint::create));
+            ColumnarData cachedData = getCachedData(order);
+            if (cachedData != null)
+                return Optional.of(cachedData.stream());
 
-            // Compute the data.
-            ImmutableList.Builder<DataPoint> cacheDataBuilder = ImmutableList.builder();
-            Stream<DataPoint> sortedStream = delegate().getData(order).orElseThrow(() ->
+            SortedKey key = new SortedKey(identifier, order);
+            return Optional.of(load(sortedCache, key, () -> delegate().getData(order).orElseThrow(() ->
                     new IllegalArgumentException("could not get sorted data from " + delegate())
-            ).peek(dataPoint -> {
-                cacheDataBuilder.add(DataPoint.create(dataPoint));
-            });
+            )));
+        }
+
+        /**
+         * A load in progress, shared by all the readers of a key.
+         * <p>
+         * The first rows are buffered in memory for the readers that lag behind, the following ones
+         * are spilled to a temporary file deleted when the last reader closes its stream.
+         */
+        private final class SharedLoad {
+
+            private final Object key;
+            private final ConcurrentSpliterator<DataPoint> data;
+            private volatile Stream<DataPoint> upstream;
 
-            // Hook on the spliterator to know when the stream is finished.
-            return Optional.of(StreamSupport.stream(new CacheSpliterator(() -> {
-                sortedCache.put(key, cacheDataBuilder.build());
-            }, sortedStream.spliterator()), false).onClose(sortedStream::close));
+            // Only incremented by the compute methods of loads, while this load is in the map.
+            private final AtomicInteger readers = new AtomicInteger();
+
+            private SharedLoad(Object key, Supplier<Stream<DataPoint>> source, Consumer<ColumnarData> onComplete) {
+                this.key = key;
+                // Upstream is opened by the first reader that needs a row.
+                this.data = ConcurrentSpliterator.create(SHARED_LOAD_LIMIT, SPILL_DIRECTORY,
+                        ConcurrentSpliterator.Codec.dataPoints(), () -> {
+                    long start = System.nanoTime();
+                    ColumnarData.Builder cacheDataBuilder = ColumnarData.builder();
+                    Stream<DataPoint> stream;
+                    try {
+                        stream = source.get().peek(cacheDataBuilder::add);
+                    } catch (RuntimeException re) {
+                        recorder.recordLoad(key, System.nanoTime() - start, false);
+                        throw re;
+                    }
+                    upstream = stream;
+                    return new CacheSpliterator(() -> {
+                        updateValidators();
+                        onComplete.accept(cacheDataBuilder.build(delegate().getDataStructure()));
+                        recorder.recordLoad(key, System.nanoTime() - start, true);
+                        loads.remove(key, this);
+                    }, () -> recorder.recordLoad(key, System.nanoTime() - start, false), stream.spliterator());
+                });
+            }
+
+            /**
+             * Called when a reader closes its stream. Upstream is closed when the last reader
+             * leaves before the end of the data; the spilled rows, if any, are deleted in any case.
+             */
+            private void release() {
+                boolean[] registered = {false};
+                boolean[] abandoned = {false};
+                loads.computeIfPresent(key, (k, load) -> {
+                    if (load != this)
+                        return load;
+                    registered[0] = true;
+                    if (readers.decrementAndGet() > 0)
+                        return load;
+                    abandoned[0] = true;
+                    return null;
+                });
+                // Once out of the map no reader can join, the last one to leave cleans up.
+                if (!abandoned[0] && (registered[0] || readers.decrementAndGet() > 0))
+                    return;
+                Stream<DataPoint> stream = upstream;
+                if (abandoned[0] && stream != null)
+                    stream.close();
+                data.close();
+            }
         }
     }
 }
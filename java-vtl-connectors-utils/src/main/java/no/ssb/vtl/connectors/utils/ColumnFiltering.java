@@ -0,0 +1,131 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.Filtering;
+import no.ssb.vtl.model.VTLObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link Filtering} that keeps the data points whose columns are equal to one of the given values.
+ * <p>
+ * Unlike an arbitrary {@link Filtering}, the columns and values are known, so that the
+ * {@link CachedConnector} can use the indexes of the cached identifier columns instead of
+ * scanning all the data points. The VTL engine does not create them, they are meant for
+ * the code that reads a {@link CachedConnector} directly.
+ * <p>
+ * Integral numbers are compared as longs and floating point numbers as doubles, the way
+ * {@link VTLObject} holds them.
+ */
+public final class ColumnFiltering implements Filtering {
+
+    private final DataStructure structure;
+    private final ImmutableMap<String, ImmutableSet<Object>> values;
+    private final int[] indices;
+
+    private ColumnFiltering(DataStructure structure, ImmutableMap<String, ImmutableSet<Object>> values) {
+        this.structure = checkNotNull(structure);
+        this.values = checkNotNull(values);
+
+        List<String> names = new ArrayList<>(structure.keySet());
+        this.indices = new int[values.size()];
+        int i = 0;
+        for (String column : values.keySet()) {
+            indices[i] = names.indexOf(column);
+            checkArgument(indices[i] >= 0, "%s was not in %s", column, structure);
+            i++;
+        }
+    }
+
+    /**
+     * Create a filtering that keeps the data points where the column is equal to one of the values.
+     */
+    public static ColumnFiltering equalTo(DataStructure structure, String column, Object... values) {
+        return new ColumnFiltering(structure, ImmutableMap.of(checkNotNull(column), toSet(values)));
+    }
+
+    /**
+     * Returns a filtering that also requires the column to be equal to one of the values.
+     */
+    public ColumnFiltering and(String column, Object... values) {
+        Map<String, ImmutableSet<Object>> combined = new LinkedHashMap<>(this.values);
+        ImmutableSet<Object> set = toSet(values);
+        combined.merge(checkNotNull(column), set, (left, right) -> ImmutableSet.copyOf(
+                left.stream().filter(right::contains).iterator()
+        ));
+        return new ColumnFiltering(structure, ImmutableMap.copyOf(combined));
+    }
+
+    private static ImmutableSet<Object> toSet(Object... values) {
+        ImmutableSet.Builder<Object> set = ImmutableSet.builder();
+        for (Object value : values) {
+            checkNotNull(value, "null values are not supported");
+            set.add(normalize(value instanceof VTLObject ? ((VTLObject) value).get() : value));
+        }
+        return set.build();
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if (value instanceof Float)
+            return ((Number) value).doubleValue();
+        return value;
+    }
+
+    /**
+     * Returns the accepted values, by column name.
+     */
+    public ImmutableMap<String, ImmutableSet<Object>> getValues() {
+        return values;
+    }
+
+    @Override
+    public boolean test(DataPoint dataPoint) {
+        int i = 0;
+        for (ImmutableSet<Object> accepted : values.values()) {
+            VTLObject value = dataPoint.get(indices[i++]);
+            if (value == null || !accepted.contains(normalize(value.get())))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .addValue(values)
+                .toString();
+    }
+}
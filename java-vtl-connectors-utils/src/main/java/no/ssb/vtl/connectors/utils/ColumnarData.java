@@ -0,0 +1,573 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.collect.ImmutableSet;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.VTLObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A compact, column oriented and immutable representation of a list of {@link DataPoint}s.
+ * <p>
+ * {@link Double} and {@link Long} columns are kept in primitive arrays and all the other
+ * values are dictionary encoded. The {@link DataPoint}s are rebuilt when the data is read.
+ * <p>
+ * The dictionary encoded identifier columns are indexed so that the rows with a given
+ * value can be found without scanning the data (see {@link #select(ColumnFiltering)}).
+ */
+final class ColumnarData {
+
+    private final DataStructure structure;
+    private final int size;
+    private final Column[] columns;
+
+    ColumnarData(DataStructure structure, int size, Column[] columns) {
+        checkArgument(size >= 0);
+        this.structure = checkNotNull(structure);
+        this.size = size;
+        this.columns = checkNotNull(columns);
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    DataStructure getStructure() {
+        return structure;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int width() {
+        return columns.length;
+    }
+
+    Column column(int index) {
+        return columns[index];
+    }
+
+    /**
+     * Rebuild the data point at the given row.
+     */
+    DataPoint get(int row) {
+        DataPoint dataPoint = DataPoint.create(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            dataPoint.set(i, columns[i].get(row));
+        }
+        return dataPoint;
+    }
+
+    /**
+     * Rebuild the data point at the given row with only the included columns, the other values
+     * are {@link VTLObject#NULL}.
+     */
+    DataPoint get(int row, boolean[] included) {
+        DataPoint dataPoint = DataPoint.create(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            dataPoint.set(i, included[i] ? columns[i].get(row) : VTLObject.NULL);
+        }
+        return dataPoint;
+    }
+
+    /**
+     * Returns the rows that can match the filtering, in order.
+     * <p>
+     * Only the indexed columns are used; the returned rows still need to be tested against the filtering.
+     */
+    IntStream select(ColumnFiltering filtering) {
+        List<String> names = new ArrayList<>(structure.keySet());
+        int[] selected = null;
+        for (Map.Entry<String, ImmutableSet<Object>> condition : filtering.getValues().entrySet()) {
+            int index = names.indexOf(condition.getKey());
+            if (index < 0 || !(columns[index] instanceof DictionaryColumn))
+                continue;
+            RowIndex rowIndex = ((DictionaryColumn) columns[index]).index();
+            if (rowIndex == null)
+                continue;
+            int[] rows = rowIndex.rows(condition.getValue());
+            selected = selected == null ? rows : intersect(selected, rows);
+        }
+        return selected == null ? IntStream.range(0, size) : IntStream.of(selected);
+    }
+
+    private static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[k++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    Stream<DataPoint> stream() {
+        return IntStream.range(0, size).mapToObj(this::get);
+    }
+
+    /**
+     * Returns a copy of this data sorted with the given comparator.
+     * <p>
+     * If the data is already sorted on some columns, only the runs of rows that have the
+     * same values in the <code>sortedColumns</code> are sorted. The sort is stable and done in
+     * parallel for large runs (see {@link Arrays#parallelSort(Object[], int, int, Comparator)}).
+     */
+    ColumnarData sort(Comparator<? super DataPoint> comparator, int... sortedColumns) {
+        DataPoint[] rows = stream().toArray(DataPoint[]::new);
+        int from = 0;
+        while (from < rows.length) {
+            int to = from + 1;
+            while (to < rows.length && sameValues(rows[from], rows[to], sortedColumns)) {
+                to++;
+            }
+            if (to - from > 1)
+                Arrays.parallelSort(rows, from, to, comparator);
+            from = to;
+        }
+
+        Builder builder = builder();
+        for (DataPoint row : rows) {
+            builder.add(row);
+        }
+        return builder.build(structure);
+    }
+
+    private static boolean sameValues(DataPoint left, DataPoint right, int[] columns) {
+        for (int column : columns) {
+            if (!Objects.equals(left.get(column), right.get(column)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if some of the columns are read from a mapped file.
+     */
+    boolean isMapped() {
+        for (Column column : columns) {
+            if (column.isMapped())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Estimate the heap size of this data in bytes.
+     */
+    long estimateSize() {
+        long estimate = DataPointWeigher.OBJECT_HEADER + DataPointWeigher.ARRAY_HEADER
+                + (long) DataPointWeigher.REFERENCE * columns.length;
+        for (Column column : columns) {
+            estimate += column.estimateSize();
+        }
+        return estimate;
+    }
+
+    /**
+     * A column of values.
+     */
+    abstract static class Column {
+
+        abstract VTLObject get(int row);
+
+        abstract long estimateSize();
+
+        /**
+         * Returns true if the values are read from a mapped file.
+         */
+        boolean isMapped() {
+            return false;
+        }
+    }
+
+    static final class DoubleColumn extends Column {
+
+        private final double[] values;
+        private final BitSet nulls;
+
+        private DoubleColumn(double[] values, BitSet nulls) {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        double[] values() {
+            return values;
+        }
+
+        BitSet nulls() {
+            return nulls;
+        }
+
+        @Override
+        VTLObject get(int row) {
+            return nulls.get(row) ? VTLObject.NULL : VTLObject.of(values[row]);
+        }
+
+        @Override
+        long estimateSize() {
+            return DataPointWeigher.ARRAY_HEADER + 8L * values.length + nulls.size() / 8;
+        }
+    }
+
+    static final class LongColumn extends Column {
+
+        private final long[] values;
+        private final BitSet nulls;
+
+        private LongColumn(long[] values, BitSet nulls) {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        long[] values() {
+            return values;
+        }
+
+        BitSet nulls() {
+            return nulls;
+        }
+
+        @Override
+        VTLObject get(int row) {
+            return nulls.get(row) ? VTLObject.NULL : VTLObject.of(values[row]);
+        }
+
+        @Override
+        long estimateSize() {
+            return DataPointWeigher.ARRAY_HEADER + 8L * values.length + nulls.size() / 8;
+        }
+    }
+
+    /**
+     * A column where each row points to a value of a dictionary. A code of -1 means null.
+     */
+    static final class DictionaryColumn extends Column {
+
+        private final VTLObject[] dictionary;
+        private final int[] codes;
+        private final RowIndex index;
+
+        private DictionaryColumn(VTLObject[] dictionary, int[] codes, RowIndex index) {
+            this.dictionary = dictionary;
+            this.codes = codes;
+            this.index = index;
+        }
+
+        /**
+         * Returns the index of the rows by value, or null if the column is not indexed.
+         */
+        RowIndex index() {
+            return index;
+        }
+
+        VTLObject[] dictionary() {
+            return dictionary;
+        }
+
+        int[] codes() {
+            return codes;
+        }
+
+        @Override
+        VTLObject get(int row) {
+            int code = codes[row];
+            return code < 0 ? VTLObject.NULL : dictionary[code];
+        }
+
+        @Override
+        long estimateSize() {
+            long estimate = 2L * DataPointWeigher.ARRAY_HEADER + 4L * codes.length
+                    + (long) DataPointWeigher.REFERENCE * dictionary.length;
+            for (VTLObject value : dictionary) {
+                estimate += DataPointWeigher.estimate(value);
+            }
+            if (index != null)
+                estimate += index.estimateSize();
+            return estimate;
+        }
+    }
+
+    /**
+     * The rows of a dictionary column grouped by code: the rows with the code <code>c</code>
+     * are <code>rows[offsets[c]]</code> to <code>rows[offsets[c + 1] - 1]</code>, in order.
+     */
+    static final class RowIndex {
+
+        private final Map<Object, Integer> codes;
+        private final int[] offsets;
+        private final int[] rows;
+
+        private RowIndex(Map<Object, Integer> codes, int[] offsets, int[] rows) {
+            this.codes = codes;
+            this.offsets = offsets;
+            this.rows = rows;
+        }
+
+        private static RowIndex create(Map<Object, Integer> codes, int dictionarySize, int[] columnCodes) {
+            int[] offsets = new int[dictionarySize + 1];
+            for (int code : columnCodes) {
+                if (code >= 0)
+                    offsets[code + 1]++;
+            }
+            for (int i = 0; i < dictionarySize; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] next = Arrays.copyOf(offsets, dictionarySize);
+            int[] rows = new int[offsets[dictionarySize]];
+            for (int row = 0; row < columnCodes.length; row++) {
+                int code = columnCodes[row];
+                if (code >= 0)
+                    rows[next[code]++] = row;
+            }
+            return new RowIndex(codes, offsets, rows);
+        }
+
+        /**
+         * Returns the rows with one of the given values, in order.
+         */
+        int[] rows(Set<Object> values) {
+            int[] result = new int[0];
+            for (Object value : values) {
+                Integer code = codes.get(value);
+                if (code == null)
+                    continue;
+                int length = result.length;
+                result = Arrays.copyOf(result, length + offsets[code + 1] - offsets[code]);
+                System.arraycopy(rows, offsets[code], result, length, offsets[code + 1] - offsets[code]);
+            }
+            if (values.size() > 1)
+                Arrays.sort(result);
+            return result;
+        }
+
+        long estimateSize() {
+            // HashMap entries are about 32 bytes, plus the table.
+            return 2L * DataPointWeigher.ARRAY_HEADER + 4L * (offsets.length + rows.length)
+                    + (32L + DataPointWeigher.REFERENCE) * codes.size();
+        }
+    }
+
+    /**
+     * Accumulates data points and selects the encoding of each column from the values it sees.
+     */
+    static final class Builder {
+
+        private final List<ColumnBuilder> columns = new ArrayList<>();
+        private int size = 0;
+        private boolean built = false;
+
+        private Builder() {
+        }
+
+        Builder add(DataPoint dataPoint) {
+            checkState(!built, "builder already used");
+            if (size == 0) {
+                for (int i = 0; i < dataPoint.size(); i++) {
+                    columns.add(new ColumnBuilder());
+                }
+            }
+            checkArgument(dataPoint.size() == columns.size(),
+                    "data point size %s did not match %s", dataPoint.size(), columns.size());
+
+            for (int i = 0; i < columns.size(); i++) {
+                columns.get(i).add(size, dataPoint.get(i));
+            }
+            size++;
+            return this;
+        }
+
+        ColumnarData build(DataStructure structure) {
+            checkState(!built, "builder already used");
+            built = true;
+            Column[] result = new Column[columns.size()];
+            List<Component> components = new ArrayList<>(structure.values());
+            for (int i = 0; i < result.length; i++) {
+                boolean identifier = i < components.size()
+                        && components.get(i).getRole() == Component.Role.IDENTIFIER;
+                result[i] = columns.get(i).build(size, identifier);
+            }
+            columns.clear();
+            return new ColumnarData(structure, size, result);
+        }
+    }
+
+    private enum Encoding {
+        UNKNOWN, DOUBLE, LONG, DICTIONARY
+    }
+
+    private static final class ColumnBuilder {
+
+        private Encoding encoding = Encoding.UNKNOWN;
+
+        private double[] doubles;
+        private long[] longs;
+        private int[] codes;
+        private final BitSet nulls = new BitSet();
+
+        private final Map<Object, Integer> index = new HashMap<>();
+        private final List<VTLObject> dictionary = new ArrayList<>();
+
+        private void add(int row, VTLObject object) {
+            Object value = object == null ? null : object.get();
+            if (value == null) {
+                nulls.set(row);
+                if (encoding == Encoding.DICTIONARY) {
+                    ensureCapacity(row);
+                    codes[row] = -1;
+                }
+                return;
+            }
+
+            if (encoding == Encoding.UNKNOWN)
+                initialize(row, value);
+
+            if (encoding == Encoding.DOUBLE && !(value instanceof Double)
+                    || encoding == Encoding.LONG && !(value instanceof Long))
+                convertToDictionary(row);
+
+            ensureCapacity(row);
+            switch (encoding) {
+                case DOUBLE:
+                    doubles[row] = (Double) value;
+                    break;
+                case LONG:
+                    longs[row] = (Long) value;
+                    break;
+                default:
+                    codes[row] = encode(object, value);
+            }
+        }
+
+        private void initialize(int row, Object value) {
+            if (value instanceof Double) {
+                encoding = Encoding.DOUBLE;
+                doubles = new double[Math.max(16, row + 1)];
+            } else if (value instanceof Long) {
+                encoding = Encoding.LONG;
+                longs = new long[Math.max(16, row + 1)];
+            } else {
+                encoding = Encoding.DICTIONARY;
+                codes = new int[Math.max(16, row + 1)];
+                // Rows seen so far were all null.
+                Arrays.fill(codes, 0, row, -1);
+            }
+        }
+
+        /**
+         * Re-encode the values seen so far when a value does not fit the primitive encoding.
+         */
+        private void convertToDictionary(int row) {
+            int[] converted = new int[Math.max(16, row + 1)];
+            for (int i = 0; i < row; i++) {
+                if (nulls.get(i)) {
+                    converted[i] = -1;
+                } else {
+                    VTLObject object = encoding == Encoding.DOUBLE
+                            ? VTLObject.of(doubles[i])
+                            : VTLObject.of(longs[i]);
+                    converted[i] = encode(object, object.get());
+                }
+            }
+            codes = converted;
+            doubles = null;
+            longs = null;
+            encoding = Encoding.DICTIONARY;
+        }
+
+        private int encode(VTLObject object, Object value) {
+            Integer code = index.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(object);
+                index.put(value, code);
+            }
+            return code;
+        }
+
+        private void ensureCapacity(int row) {
+            switch (encoding) {
+                case DOUBLE:
+                    if (row >= doubles.length)
+                        doubles = Arrays.copyOf(doubles, grow(doubles.length, row));
+                    break;
+                case LONG:
+                    if (row >= longs.length)
+                        longs = Arrays.copyOf(longs, grow(longs.length, row));
+                    break;
+                case DICTIONARY:
+                    if (row >= codes.length)
+                        codes = Arrays.copyOf(codes, grow(codes.length, row));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static int grow(int length, int row) {
+            return Math.max(row + 1, length + (length >> 1));
+        }
+
+        private Column build(int size, boolean indexed) {
+            switch (encoding) {
+                case DOUBLE:
+                    return new DoubleColumn(Arrays.copyOf(doubles, size), nulls);
+                case LONG:
+                    return new LongColumn(Arrays.copyOf(longs, size), nulls);
+                case DICTIONARY:
+                    int[] columnCodes = Arrays.copyOf(codes, size);
+                    return new DictionaryColumn(dictionary.toArray(new VTLObject[0]), columnCodes,
+                            indexed ? RowIndex.create(index, dictionary.size(), columnCodes) : null);
+                default:
+                    // Only nulls.
+                    int[] nullCodes = new int[size];
+                    Arrays.fill(nullCodes, -1);
+                    return new DictionaryColumn(new VTLObject[0], nullCodes, null);
+            }
+        }
+    }
+}
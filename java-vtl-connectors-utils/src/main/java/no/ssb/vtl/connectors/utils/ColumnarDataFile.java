@@ -0,0 +1,430 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.io.CountingOutputStream;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.VTLObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.BitSet;
+
+import static java.lang.String.format;
+
+/**
+ * Binary, column oriented file format for {@link ColumnarData}.
+ * <p>
+ * The file starts with the {@link DataStructure} and ends with a footer that contains the
+ * offset of each column. The columns are memory mapped when the file is opened so that the
+ * values are read directly from the mapped buffers and never copied back on the heap. Only the
+ * dictionaries are decoded.
+ * <pre>
+ * header: magic, version, structure
+ * column: [null words, null bitmap, doubles|longs] or [dictionary size, dictionary, codes]
+ * footer: row count, column count, (kind, offset, length) per column, footer offset, magic
+ * </pre>
+ */
+final class ColumnarDataFile {
+
+    private static final int MAGIC = 0x56544C43;
+    private static final int VERSION = 1;
+
+    private static final byte DOUBLE_COLUMN = 1;
+    private static final byte LONG_COLUMN = 2;
+    private static final byte DICTIONARY_COLUMN = 3;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte INSTANT = 5;
+
+    private ColumnarDataFile() {
+    }
+
+    /**
+     * Write the data to the given path.
+     *
+     * @throws IOException if the data contains a type that cannot be written.
+     */
+    static void write(ColumnarData data, Path path) throws IOException {
+        try (OutputStream fileStream = Files.newOutputStream(path)) {
+            write(data, fileStream);
+        }
+    }
+
+    static void write(ColumnarData data, OutputStream stream) throws IOException {
+        CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(stream));
+        DataOutputStream output = new DataOutputStream(counting);
+
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        writeStructure(data.getStructure(), output);
+
+        int width = data.width();
+        byte[] kinds = new byte[width];
+        long[] offsets = new long[width];
+        long[] lengths = new long[width];
+        for (int i = 0; i < width; i++) {
+            output.flush();
+            offsets[i] = counting.getCount();
+            kinds[i] = writeColumn(data.column(i), data.size(), output);
+            output.flush();
+            lengths[i] = counting.getCount() - offsets[i];
+        }
+
+        long footer = counting.getCount();
+        output.writeInt(data.size());
+        output.writeInt(width);
+        for (int i = 0; i < width; i++) {
+            output.writeByte(kinds[i]);
+            output.writeLong(offsets[i]);
+            output.writeLong(lengths[i]);
+        }
+        output.writeLong(footer);
+        output.writeInt(MAGIC);
+        output.flush();
+    }
+
+    private static void writeStructure(DataStructure structure, DataOutput output) throws IOException {
+        output.writeInt(structure.size());
+        for (String name : structure.keySet()) {
+            Component component = structure.get(name);
+            output.writeUTF(name);
+            output.writeUTF(component.getRole().name());
+            output.writeUTF(component.getType().getName());
+        }
+    }
+
+    private static DataStructure readStructure(DataInput input) throws IOException {
+        int size = input.readInt();
+        DataStructure.Builder builder = DataStructure.builder();
+        for (int i = 0; i < size; i++) {
+            String name = input.readUTF();
+            Component.Role role = Component.Role.valueOf(input.readUTF());
+            String type = input.readUTF();
+            try {
+                builder.put(name, role, Class.forName(type));
+            } catch (ClassNotFoundException cnfe) {
+                throw new IOException(format("unknown type %s for %s", type, name), cnfe);
+            }
+        }
+        return builder.build();
+    }
+
+    private static byte writeColumn(ColumnarData.Column column, int size, DataOutput output) throws IOException {
+        if (column instanceof ColumnarData.DoubleColumn) {
+            ColumnarData.DoubleColumn doubleColumn = (ColumnarData.DoubleColumn) column;
+            writeNulls(doubleColumn.nulls(), size, output);
+            for (double value : doubleColumn.values()) {
+                output.writeDouble(value);
+            }
+            return DOUBLE_COLUMN;
+        } else if (column instanceof ColumnarData.LongColumn) {
+            ColumnarData.LongColumn longColumn = (ColumnarData.LongColumn) column;
+            writeNulls(longColumn.nulls(), size, output);
+            for (long value : longColumn.values()) {
+                output.writeLong(value);
+            }
+            return LONG_COLUMN;
+        } else if (column instanceof ColumnarData.DictionaryColumn) {
+            ColumnarData.DictionaryColumn dictionaryColumn = (ColumnarData.DictionaryColumn) column;
+            VTLObject[] dictionary = dictionaryColumn.dictionary();
+            output.writeInt(dictionary.length);
+            for (VTLObject value : dictionary) {
+                writeValue(value.get(), output);
+            }
+            for (int code : dictionaryColumn.codes()) {
+                output.writeInt(code);
+            }
+            return DICTIONARY_COLUMN;
+        } else {
+            // Mapped columns are never written back.
+            throw new IOException(format("cannot write column %s", column));
+        }
+    }
+
+    private static void writeNulls(BitSet nulls, int size, DataOutput output) throws IOException {
+        long[] words = nulls.toLongArray();
+        int length = (size + 63) / 64;
+        output.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            output.writeLong(i < words.length ? words[i] : 0L);
+        }
+    }
+
+    /**
+     * Serializes the data points row by row: the number of values followed by the values.
+     */
+    static final ConcurrentSpliterator.Codec<DataPoint> DATA_POINT_CODEC = new ConcurrentSpliterator.Codec<DataPoint>() {
+        @Override
+        public void write(DataPoint dataPoint, DataOutput output) throws IOException {
+            output.writeInt(dataPoint.size());
+            for (VTLObject value : dataPoint) {
+                writeValue(value.get(), output);
+            }
+        }
+
+        @Override
+        public DataPoint read(DataInput input) throws IOException {
+            int size = input.readInt();
+            DataPoint dataPoint = DataPoint.create(size);
+            for (int i = 0; i < size; i++) {
+                Object value = readValue(input);
+                dataPoint.set(i, value == null ? VTLObject.NULL : VTLObject.of(value));
+            }
+            return dataPoint;
+        }
+    };
+
+    static void writeValue(Object value, DataOutput output) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            output.writeByte(STRING);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Instant) {
+            output.writeByte(INSTANT);
+            output.writeLong(((Instant) value).getEpochSecond());
+            output.writeInt(((Instant) value).getNano());
+        } else {
+            throw new IOException(format("unsupported type %s", value.getClass()));
+        }
+    }
+
+    static Object readValue(DataInput input) throws IOException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case LONG:
+                return input.readLong();
+            case DOUBLE:
+                return input.readDouble();
+            case BOOLEAN:
+                return input.readBoolean();
+            case INSTANT:
+                return Instant.ofEpochSecond(input.readLong(), input.readInt());
+            default:
+                throw new IOException(format("unknown value tag %s", tag));
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case INSTANT:
+                return Instant.ofEpochSecond(buffer.getLong(), buffer.getInt());
+            default:
+                throw new IOException(format("unknown value tag %s", tag));
+        }
+    }
+
+    /**
+     * Open and map the file at the given path.
+     * <p>
+     * The file can be deleted once opened; the mapping stays valid until the returned data is
+     * garbage collected.
+     */
+    static ColumnarData open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer tail = ByteBuffer.allocate(12);
+            channel.read(tail, fileSize - 12);
+            tail.flip();
+            long footerOffset = tail.getLong();
+            if (tail.getInt() != MAGIC)
+                throw new IOException(format("%s is not a data file", path));
+
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel.position(0)));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION)
+                throw new IOException(format("%s has an unsupported version", path));
+            DataStructure structure = readStructure(header);
+
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, fileSize - footerOffset);
+            int size = footer.getInt();
+            int width = footer.getInt();
+            ColumnarData.Column[] columns = new ColumnarData.Column[width];
+            for (int i = 0; i < width; i++) {
+                byte kind = footer.get();
+                long offset = footer.getLong();
+                long length = footer.getLong();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                columns[i] = mapColumn(kind, buffer);
+            }
+            return new ColumnarData(structure, size, columns);
+        }
+    }
+
+    private static ColumnarData.Column mapColumn(byte kind, ByteBuffer buffer) throws IOException {
+        switch (kind) {
+            case DOUBLE_COLUMN:
+                return new MappedDoubleColumn(buffer);
+            case LONG_COLUMN:
+                return new MappedLongColumn(buffer);
+            case DICTIONARY_COLUMN:
+                VTLObject[] dictionary = new VTLObject[buffer.getInt()];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = VTLObject.of(readValue(buffer));
+                }
+                return new MappedDictionaryColumn(dictionary, buffer, buffer.position());
+            default:
+                throw new IOException(format("unknown column kind %s", kind));
+        }
+    }
+
+    /**
+     * Base class for mapped primitive columns: null bitmap followed by 8 bytes values.
+     */
+    private abstract static class MappedPrimitiveColumn extends ColumnarData.Column {
+
+        final ByteBuffer buffer;
+        final int valuesOffset;
+
+        private MappedPrimitiveColumn(ByteBuffer buffer) {
+            this.buffer = buffer;
+            int words = buffer.getInt(0);
+            this.valuesOffset = 4 + words * 8;
+        }
+
+        boolean isNull(int row) {
+            long word = buffer.getLong(4 + (row >>> 6) * 8);
+            return (word & (1L << row)) != 0;
+        }
+
+        @Override
+        boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        long estimateSize() {
+            // Values are not on the heap.
+            return DataPointWeigher.OBJECT_HEADER * 2;
+        }
+    }
+
+    private static final class MappedDoubleColumn extends MappedPrimitiveColumn {
+
+        private MappedDoubleColumn(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+        @Override
+        VTLObject get(int row) {
+            return isNull(row) ? VTLObject.NULL : VTLObject.of(buffer.getDouble(valuesOffset + row * 8));
+        }
+    }
+
+    private static final class MappedLongColumn extends MappedPrimitiveColumn {
+
+        private MappedLongColumn(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+        @Override
+        VTLObject get(int row) {
+            return isNull(row) ? VTLObject.NULL : VTLObject.of(buffer.getLong(valuesOffset + row * 8));
+        }
+    }
+
+    private static final class MappedDictionaryColumn extends ColumnarData.Column {
+
+        private final VTLObject[] dictionary;
+        private final ByteBuffer buffer;
+        private final int codesOffset;
+
+        private MappedDictionaryColumn(VTLObject[] dictionary, ByteBuffer buffer, int codesOffset) {
+            this.dictionary = dictionary;
+            this.buffer = buffer;
+            this.codesOffset = codesOffset;
+        }
+
+        int code(int row) {
+            return buffer.getInt(codesOffset + row * 4);
+        }
+
+        @Override
+        VTLObject get(int row) {
+            int code = code(row);
+            return code < 0 ? VTLObject.NULL : dictionary[code];
+        }
+
+        @Override
+        boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        long estimateSize() {
+            long estimate = DataPointWeigher.ARRAY_HEADER + (long) DataPointWeigher.REFERENCE * dictionary.length;
+            for (VTLObject value : dictionary) {
+                estimate += DataPointWeigher.estimate(value);
+            }
+            return estimate;
+        }
+    }
+}
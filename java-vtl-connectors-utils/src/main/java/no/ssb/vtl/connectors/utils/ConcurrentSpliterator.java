@@ -22,43 +22,99 @@ package no.ssb.vtl.connectors.utils;
 
 
 
-import com.google.common.collect.Lists;
-
-import java.util.ArrayList;
-import java.util.Comparator;
+import no.ssb.vtl.model.DataPoint;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A Spliterator that can be shared between threads.
+ * <p>
+ * The source is opened lazily and consumed only once; the elements are buffered so that
+ * every {@link Spliterator} returned by {@link #get()} sees all of them, tailing the buffer
+ * while the source is being read. The thread that reaches the end of the buffer first
+ * reads the next elements from the source.
+ * <p>
+ * The buffer is an append-only list of fixed size segments. The thread reading the source
+ * publishes the elements by incrementing a volatile size, the readers never lock and read all
+ * the elements published since their last look in one go.
+ * <p>
+ * The buffered elements can be split without copying for parallel streams: {@link Spliterator#trySplit()}
+ * returns ranges of the segments, halving them once the source has been read until the end.
+ * <p>
+ * Once the buffer holds <code>limit</code> elements, the readers that need more
+ * continue on a new spliterator from the supplier, skipping the elements they already saw.
+ * Alternatively, the elements past the limit can be spilled to a temporary file (see
+ * {@link #create(int, Path, Codec, Supplier)}) so that the source is still read only once.
  */
-public class ConcurrentSpliterator<T> implements Supplier<Spliterator<T>> {
+public class ConcurrentSpliterator<T> implements Supplier<Spliterator<T>>, AutoCloseable {
 
-    private final Supplier<Spliterator<T>> supplier;
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // Number of elements read from the source at once by forEachRemaining.
+    private static final int BATCH_SIZE = 256;
 
+    // Ranges smaller than this are not split further.
+    private static final int MIN_SPLIT = 64;
 
-    private final ArrayList<T> data;
+    private final Supplier<Spliterator<T>> supplier;
     private final int limit;
-    private volatile int size = -1;
+    private final Spill<T> spill;
 
-    private Spliterator<T> spliterator;
+    // Written by the thread holding the source lock, published by size.
+    private volatile Object[][] segments = new Object[4][];
+    private volatile int size = 0;
 
-    private ReentrantLock writeLock = new ReentrantLock();
+    // Guards the access to the source.
+    private final ReentrantLock sourceLock = new ReentrantLock();
+    private Spliterator<T> source;
+    private volatile boolean done = false;
+    private volatile RuntimeException failure;
 
-    private ConcurrentSpliterator(int limit, Supplier<Spliterator<T>> supplier) {
-        this.limit = checkNotNull(limit);
+    private ConcurrentSpliterator(int limit, Supplier<Spliterator<T>> supplier, Spill<T> spill) {
+        checkArgument(limit > 0, "limit must be greater than 0");
+        this.limit = limit;
         this.supplier = checkNotNull(supplier);
-        this.spliterator = supplier.get();
-        this.data = Lists.newArrayListWithCapacity(limit);
+        this.spill = spill;
+    }
+
+    public static <T> ConcurrentSpliterator<T> create(int limit, Supplier<Spliterator<T>> supplier) {
+        return new ConcurrentSpliterator<>(limit, supplier, null);
     }
 
-    public synchronized static <T> ConcurrentSpliterator<T> create(int limit, Supplier<Spliterator<T>> supplier) {
-        return new ConcurrentSpliterator<>(limit, supplier);
+    /**
+     * Create a spliterator that keeps <code>limit</code> elements in memory and writes the
+     * following ones to a temporary file in the given directory.
+     * <p>
+     * The file is created when the first element is spilled and deleted by {@link #close()}.
+     */
+    public static <T> ConcurrentSpliterator<T> create(int limit, Path directory, Codec<T> codec,
+                                                      Supplier<Spliterator<T>> supplier) {
+        return new ConcurrentSpliterator<>(limit, supplier, new Spill<>(directory, codec));
     }
 
     @Override
@@ -66,112 +122,386 @@ public class ConcurrentSpliterator<T> implements Supplier<Spliterator<T>> {
         return new SharedSpliterator();
     }
 
-    private class SkipSpliterator implements Spliterator<T> {
+    /**
+     * Returns true if the source was read until the end.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns true if reading the source failed.
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Returns the number of buffered elements, including the spilled ones.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Delete the spilled elements, if any. The readers cannot read them after this.
+     */
+    @Override
+    public void close() {
+        if (spill != null)
+            spill.close();
+    }
+
+    /**
+     * Returns a buffered element; the index must be lower than a value previously read from size.
+     */
+    @SuppressWarnings("unchecked")
+    private T element(int index) {
+        return (T) segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    /**
+     * Append an element to the buffer, or to the spill file past the limit. Must be called
+     * with the source lock held.
+     */
+    private void append(T element) {
+        checkNotNull(element, "null elements are not supported");
+        int index = size;
+        if (index >= limit) {
+            spill.write(element);
+            return;
+        }
+        int segment = index >>> SEGMENT_SHIFT;
+        Object[][] current = segments;
+        if (segment == current.length)
+            current = Arrays.copyOf(current, current.length * 2);
+        if (current[segment] == null)
+            current[segment] = new Object[SEGMENT_SIZE];
+        current[segment][index & SEGMENT_MASK] = element;
+        segments = current;
+        size = index + 1;
+    }
+
+    /**
+     * Returns the number of elements that can be buffered.
+     */
+    private int capacity() {
+        return spill != null ? Integer.MAX_VALUE : limit;
+    }
+
+    /**
+     * Make sure the element at the given position is buffered, reading up to <code>batch</code>
+     * elements from the source if needed.
+     *
+     * @return false if the source has no element at this position or if it is past the limit
+     */
+    private boolean fetch(int index, int batch) {
+        while (true) {
+            if (index < size)
+                return true;
+            if (failure != null)
+                throw failure;
+            if (done || index >= capacity())
+                return false;
+
+            sourceLock.lock();
+            try {
+                // Another reader might have read it while we were waiting.
+                if (index < size || done || failure != null)
+                    continue;
+                if (source == null)
+                    source = checkNotNull(supplier.get());
+                int end = (int) Math.min((long) index + batch, capacity());
+                boolean exhausted = false;
+                while (!exhausted && size + pending() < end) {
+                    exhausted = !source.tryAdvance(this::append);
+                }
+                // The spilled elements are published once written.
+                if (pending() > 0)
+                    size += spill.flush();
+                if (exhausted) {
+                    source = null;
+                    done = true;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                sourceLock.unlock();
+            }
+        }
+    }
+
+    private int pending() {
+        return spill != null ? spill.pending : 0;
+    }
+
+    /**
+     * Serializes the elements spilled to disk.
+     */
+    public interface Codec<T> {
+
+        void write(T element, DataOutput output) throws IOException;
+
+        T read(DataInput input) throws IOException;
+
+        /**
+         * Returns a codec for {@link DataPoint}s, that supports the value types of the cache files.
+         */
+        static Codec<DataPoint> dataPoints() {
+            return ColumnarDataFile.DATA_POINT_CODEC;
+        }
+    }
+
+    /**
+     * The elements past the limit, written to a temporary file.
+     * <p>
+     * The file is written and read with positional operations on a single channel. Each
+     * reader keeps its own offset.
+     */
+    private static final class Spill<T> {
+
+        private final Path directory;
+        private final Codec<T> codec;
+
+        // Written with the source lock held.
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(buffer);
+        private int pending = 0;
+        private long length = 0;
+
+        private volatile Path file;
+        private volatile FileChannel channel;
+        private volatile boolean closed = false;
+
+        private Spill(Path directory, Codec<T> codec) {
+            this.directory = checkNotNull(directory);
+            this.codec = checkNotNull(codec);
+        }
+
+        private void write(T element) {
+            try {
+                codec.write(element, output);
+                pending++;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * Write the pending elements to the file.
+         *
+         * @return the number of elements written
+         */
+        private int flush() {
+            checkState(!closed, "closed");
+            try {
+                if (channel == null) {
+                    file = Files.createTempFile(directory, "spill-", ".tmp");
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+                while (bytes.hasRemaining()) {
+                    length += channel.write(bytes, length);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            buffer.reset();
+            int written = pending;
+            pending = 0;
+            return written;
+        }
+
+        private DataInput newInput() {
+            return new DataInputStream(new BufferedInputStream(new InputStream() {
+
+                private long position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == 1 ? one[0] & 0xFF : -1;
+                }
 
-        private final Spliterator<T> source;
-        int skip = -1;
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    checkState(!closed, "closed");
+                    int read = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+                    if (read > 0)
+                        position += read;
+                    return read;
+                }
+            }));
+        }
 
-        public SkipSpliterator(int skip, Spliterator<T> spliterator) {
-            this.skip = skip;
-            this.source = spliterator;
+        private T read(DataInput input) {
+            try {
+                return codec.read(input);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
         }
 
+        private synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                if (channel != null)
+                    channel.close();
+                if (file != null)
+                    Files.deleteIfExists(file);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
+    /**
+     * A range of the buffered elements.
+     */
+    private final class BufferSpliterator implements Spliterator<T> {
+
+        private int index;
+        private final int end;
+
+        private BufferSpliterator(int index, int end) {
+            this.index = index;
+            this.end = end;
+        }
 
         @Override
         public boolean tryAdvance(Consumer<? super T> action) {
-            if (skip <= 0) {
-                return source.tryAdvance(action);
-            }
-            while (skip > 0 && source.tryAdvance(e -> {
-                skip--;
-                action.accept(e);
-            })) ;
-            return skip <= 0;
+            if (index >= end)
+                return false;
+            action.accept(element(index++));
+            return true;
         }
 
         @Override
         public void forEachRemaining(Consumer<? super T> action) {
-            if (skip > 0) {
-                tryAdvance(action);
-            }
-            if (skip <= 0) {
-                source.forEachRemaining(action);
-            }
+            while (index < end)
+                action.accept(element(index++));
         }
 
         @Override
         public Spliterator<T> trySplit() {
-            return null;
+            int middle = (index + end) >>> 1;
+            if (middle - index < MIN_SPLIT)
+                return null;
+            BufferSpliterator prefix = new BufferSpliterator(index, middle);
+            index = middle;
+            return prefix;
         }
 
         @Override
         public long estimateSize() {
-            return skip <= 0 ? source.estimateSize() : Long.MAX_VALUE;
+            return end - index;
         }
 
         @Override
         public int characteristics() {
-            return source.characteristics() & ~Spliterator.SIZED;
-        }
-
-        @Override
-        public Comparator<? super T> getComparator() {
-            return source.getComparator();
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED
+                    | Spliterator.NONNULL | Spliterator.IMMUTABLE;
         }
     }
 
-    private class SharedSpliterator extends Spliterators.AbstractSpliterator<T> {
-
-        private int counter = -1;
-        private boolean hasMore = true;
-        private Spliterator<T> source;
+    private final class SharedSpliterator extends Spliterators.AbstractSpliterator<T> {
 
+        private int position = 0;
+        private Spliterator<T> own;
+        private DataInput spilled;
 
         private SharedSpliterator() {
-            super(Long.MAX_VALUE, Spliterator.IMMUTABLE);
-            source = spliterator;
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+
+        /**
+         * Returns the next element, from memory or from the spill file.
+         */
+        private T next() {
+            int index = position++;
+            if (index < limit)
+                return element(index);
+            // The spill file is read sequentially.
+            if (spilled == null)
+                spilled = spill.newInput();
+            return spill.read(spilled);
         }
 
         @Override
         public boolean tryAdvance(Consumer<? super T> action) {
+            if (own != null)
+                return own.tryAdvance(action);
 
-            if (source != spliterator)
-                return source.tryAdvance(action);
+            if (fetch(position, 1)) {
+                action.accept(next());
+                return true;
+            }
+            return continueAlone(action);
+        }
 
-            if (!hasMore) // && !(counter < limit))
-                return false;
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (own == null) {
+                if (!fetch(position, BATCH_SIZE)) {
+                    if (!continueAlone(action))
+                        return;
+                    continue;
+                }
+                // Everything published so far, without touching the volatile size again.
+                int available = size;
+                while (position < available)
+                    action.accept(next());
+            }
+            own.forEachRemaining(action);
+        }
 
-            if (writeLock.tryLock()) {
-                try {
-                    if (size >= limit)
-                        source = new SkipSpliterator(counter, supplier.get());
+        /**
+         * Split the buffered elements off, in halves if all of the remaining elements are in memory.
+         * Falls back to copying batches from the source when nothing is buffered yet.
+         */
+        @Override
+        public Spliterator<T> trySplit() {
+            if (own != null)
+                return own.trySplit();
+
+            boolean complete = done;
+            int available = size;
+            int end = Math.min(available, limit);
+            if (position >= end)
+                return complete ? null : super.trySplit();
+
+            int splitEnd = complete && available <= limit ? (position + end) >>> 1 : end;
+            if (splitEnd - position < MIN_SPLIT && complete && available <= limit)
+                return null;
+            BufferSpliterator prefix = new BufferSpliterator(position, splitEnd);
+            position = splitEnd;
+            return prefix;
+        }
 
-                    hasMore &= source.tryAdvance(dp -> {
-                        data.add(dp);
-                        action.accept(dp);
-                    });
-                    size = data.size();
+        @Override
+        public long estimateSize() {
+            if (own == null && done)
+                return size - position;
+            return super.estimateSize();
+        }
 
-                    return hasMore;
-                } finally {
-                    writeLock.unlock();
-                }
-            } else {
-                writeLock.lock();
-                try {
-                    if (size >= limit)
-                        source = new SkipSpliterator(counter, supplier.get());
-
-                    while (++counter < size) {
-                        T next = data.get(counter);
-                        action.accept(next);
-                    }
-                    return true;
-                } finally {
-                    writeLock.unlock();
-                }
-            }
+        /**
+         * Past the buffer, continue on a new spliterator from the supplier.
+         */
+        private boolean continueAlone(Consumer<? super T> action) {
+            if (position < capacity() || done)
+                return false;
 
+            own = supplier.get();
+            for (int i = 0; i < position; i++) {
+                if (!own.tryAdvance(skipped -> {
+                }))
+                    return false;
+            }
+            return own.tryAdvance(action);
         }
     }
 }
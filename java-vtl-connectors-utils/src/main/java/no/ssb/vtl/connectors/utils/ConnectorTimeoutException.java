@@ -0,0 +1,48 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import no.ssb.vtl.connectors.ConnectorException;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Thrown when a call to a connector or a dataset did not complete within its deadline
+ * (see {@link TimeoutConnector.Builder#callTimeout(Duration)}).
+ */
+public class ConnectorTimeoutException extends ConnectorException {
+
+    private final Duration timeout;
+
+    public ConnectorTimeoutException(String message, Duration timeout) {
+        super(message);
+        this.timeout = checkNotNull(timeout);
+    }
+
+    /**
+     * Returns the deadline that was exceeded.
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+}
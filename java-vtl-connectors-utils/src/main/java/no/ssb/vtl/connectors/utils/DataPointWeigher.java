@@ -0,0 +1,76 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.cache.Weigher;
+import com.google.common.primitives.Ints;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.VTLObject;
+
+import java.time.Instant;
+
+/**
+ * A {@link Weigher} that estimates the heap size (in bytes) of cached {@link DataPoint}s.
+ * <p>
+ * The estimation assumes a 64 bits JVM and is only meant to be used to bound caches.
+ */
+final class DataPointWeigher implements Weigher<Object, ColumnarData> {
+
+    static final DataPointWeigher INSTANCE = new DataPointWeigher();
+
+    static final int OBJECT_HEADER = 16;
+    static final int REFERENCE = 8;
+    static final int ARRAY_HEADER = 16;
+
+    private static final int BOXED = OBJECT_HEADER + 8;
+    private static final int STRING = OBJECT_HEADER + 8 + ARRAY_HEADER;
+
+    private DataPointWeigher() {
+    }
+
+    /**
+     * Estimate the size of a single value, including its {@link VTLObject} wrapper.
+     */
+    static long estimate(VTLObject object) {
+        if (object == null)
+            return 0;
+        return OBJECT_HEADER + estimateValue(object.get());
+    }
+
+    /**
+     * Estimate the size of the given value, without wrapper.
+     */
+    static long estimateValue(Object value) {
+        if (value == null || value instanceof Boolean)
+            return 0;
+        if (value instanceof String)
+            return STRING + 2L * ((String) value).length();
+        if (value instanceof Number || value instanceof Instant)
+            return BOXED;
+        return OBJECT_HEADER;
+    }
+
+    @Override
+    public int weigh(Object key, ColumnarData value) {
+        return Ints.saturatedCast(value.estimateSize());
+    }
+}
@@ -0,0 +1,212 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Second cache tier that keeps {@link ColumnarData} in memory mapped files.
+ * <p>
+ * Data evicted from the heap caches is written to a file in the given directory
+ * and mapped back. Reads are served from the mapped buffers. The files are deleted
+ * when the entries are removed from this tier.
+ * <p>
+ * The evicted data is written asynchronously. A key that is invalidated while its data is
+ * waiting to be written cancels the write, so stale data never reaches this tier.
+ */
+final class MappedDataTier {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedDataTier.class);
+
+    private final Path directory;
+    private final Cache<Object, Entry> entries;
+    private final Executor writer;
+
+    // The last spill queued for each key, removed by invalidation to cancel the write.
+    private final ConcurrentMap<Object, Object> pendingSpills = new ConcurrentHashMap<>();
+
+    MappedDataTier(Path directory, long maximumBytes) {
+        this(directory, maximumBytes, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("mapped-data-tier-%d")
+                .setDaemon(true)
+                .build()));
+    }
+
+    MappedDataTier(Path directory, long maximumBytes, Executor writer) {
+        checkArgument(maximumBytes > 0, "maximum size must be greater than 0");
+        this.directory = checkNotNull(directory);
+        this.entries = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .concurrencyLevel(1)
+                .<Object, Entry>weigher((key, entry) -> Ints.saturatedCast(entry.fileSize))
+                .removalListener(this::delete)
+                .recordStats()
+                .build();
+        this.writer = checkNotNull(writer);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Returns a listener that moves the entries evicted because of their size to this tier.
+     * Data that is already mapped is not moved.
+     */
+    <K> RemovalListener<K, ColumnarData> spillListener() {
+        return notification -> {
+            if (notification.wasEvicted() && notification.getValue() != null
+                    && notification.getCause() == RemovalCause.SIZE && !notification.getValue().isMapped()) {
+                K key = notification.getKey();
+                ColumnarData data = notification.getValue();
+                Object spill = new Object();
+                pendingSpills.put(key, spill);
+                writer.execute(() -> spill(key, data, spill));
+            }
+        };
+    }
+
+    /**
+     * Writes the data of a queued spill, unless the key was invalidated or spilled again since.
+     */
+    private void spill(Object key, ColumnarData data, Object spill) {
+        if (pendingSpills.get(key) != spill)
+            return;
+        Entry entry = write(key, data);
+        if (entry == null)
+            return;
+        synchronized (this) {
+            if (pendingSpills.remove(key, spill)) {
+                entries.put(key, entry);
+                return;
+            }
+        }
+        log.debug("discarded the spill of {}, invalidated while written", key);
+        deleteQuietly(entry.file);
+    }
+
+    ColumnarData getIfPresent(Object key) {
+        Entry entry = entries.getIfPresent(key);
+        return entry == null ? null : entry.data;
+    }
+
+    void put(Object key, ColumnarData data) {
+        Entry entry = write(key, data);
+        if (entry != null)
+            entries.put(key, entry);
+    }
+
+    private Entry write(Object key, ColumnarData data) {
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, "data-", ".vtlc");
+            ColumnarDataFile.write(data, file);
+            Entry entry = new Entry(file, Files.size(file), ColumnarDataFile.open(file));
+            log.debug("moved {} ({} rows) to {}", key, data.size(), file);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            log.warn("could not move {} to the mapped tier", key, e);
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    synchronized void invalidate(Object key) {
+        pendingSpills.remove(key);
+        entries.invalidate(key);
+    }
+
+    synchronized void invalidateIf(Predicate<Object> predicate) {
+        pendingSpills.keySet().removeIf(predicate);
+        entries.asMap().keySet().removeIf(predicate);
+    }
+
+    CacheStats stats() {
+        return entries.stats();
+    }
+
+    long size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the size of the file of each entry, in bytes.
+     */
+    Map<Object, Long> fileSizes() {
+        Map<Object, Long> sizes = new HashMap<>();
+        entries.asMap().forEach((key, entry) -> sizes.put(key, entry.fileSize));
+        return sizes;
+    }
+
+    private void delete(RemovalNotification<Object, Entry> notification) {
+        deleteQuietly(notification.getValue().file);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null)
+            return;
+        try {
+            // Mapped buffers stay valid after the file is deleted.
+            Files.deleteIfExists(file);
+        } catch (IOException ioe) {
+            log.warn("could not delete {}", file, ioe);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path file;
+        private final long fileSize;
+        private final ColumnarData data;
+
+        private Entry(Path file, long fileSize, ColumnarData data) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.data = data;
+        }
+    }
+}
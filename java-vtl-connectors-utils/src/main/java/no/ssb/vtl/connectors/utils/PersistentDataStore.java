@@ -0,0 +1,397 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A directory of {@link ColumnarDataFile}s that outlives the JVM.
+ * <p>
+ * The entries are keyed by dataset identifier and ordering, and expire after a time to live.
+ * An index file keeps track of the entries and is loaded when the store is created so that the
+ * data written before a restart is available right away. The data files are memory mapped when
+ * first read.
+ * <p>
+ * The data is written in the background; invalidating an identifier cancels its queued writes.
+ * The {@link Validators} of the data, if any, are kept in the index so that the data can be
+ * revalidated after a restart.
+ * <pre>
+ * index: magic, version, count, (identifier, ordering, file name, written at, expires at,
+ *        has entity tag, [entity tag], last modified or Long.MIN_VALUE) per entry
+ * </pre>
+ */
+final class PersistentDataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistentDataStore.class);
+
+    private static final String INDEX = "index";
+    private static final String PREFIX = "data-";
+    private static final String SUFFIX = ".vtlc";
+
+    private static final int MAGIC = 0x56544C49;
+    private static final int VERSION = 2;
+
+    private static final long NO_LAST_MODIFIED = Long.MIN_VALUE;
+
+    private final Path directory;
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService writer;
+
+    // The last write queued for each key, removed by invalidation to cancel the write.
+    private final ConcurrentMap<Key, Object> pendingWrites = new ConcurrentHashMap<>();
+
+    PersistentDataStore(Path directory, Duration timeToLive) {
+        this(directory, timeToLive, Clock.systemUTC());
+    }
+
+    PersistentDataStore(Path directory, Duration timeToLive, Clock clock) {
+        checkArgument(!timeToLive.isNegative() && !timeToLive.isZero(), "time to live must be positive");
+        this.directory = checkNotNull(directory);
+        this.timeToLive = timeToLive;
+        this.clock = checkNotNull(clock);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("persistent-data-store-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            Files.createDirectories(directory);
+            loadIndex();
+            deleteUnreferencedFiles();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Returns true if the store has data for the identifier that did not expire.
+     */
+    boolean contains(String identifier, String ordering) {
+        Entry entry = entries.get(new Key(identifier, ordering));
+        return entry != null && !entry.isExpired(clock.instant());
+    }
+
+    /**
+     * Returns the data if present and not expired, or null.
+     */
+    ColumnarData getIfPresent(String identifier, String ordering) {
+        Key key = new Key(identifier, ordering);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (entry.isExpired(clock.instant())) {
+            invalidate(key, entry);
+            return null;
+        }
+        try {
+            return entry.open(directory);
+        } catch (IOException ioe) {
+            log.warn("could not read {} from {}", key, entry.fileName, ioe);
+            invalidate(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the validators of the data if present and not expired.
+     */
+    Optional<Validators> getValidators(String identifier, String ordering) {
+        Entry entry = entries.get(new Key(identifier, ordering));
+        if (entry == null || entry.isExpired(clock.instant()))
+            return Optional.empty();
+        return Optional.ofNullable(entry.validators);
+    }
+
+    /**
+     * Write the data in the background. The entry replaces the existing one, if any.
+     */
+    void put(String identifier, String ordering, ColumnarData data) {
+        put(identifier, ordering, data, null);
+    }
+
+    /**
+     * Write the data and its validators (can be null) in the background. The entry replaces
+     * the existing one, if any.
+     */
+    void put(String identifier, String ordering, ColumnarData data, Validators validators) {
+        Key key = new Key(identifier, ordering);
+        Object write = new Object();
+        pendingWrites.put(key, write);
+        writer.execute(() -> write(key, data, validators, write));
+    }
+
+    private void write(Key key, ColumnarData data, Validators validators, Object write) {
+        if (pendingWrites.get(key) != write)
+            return;
+        Path file = null;
+        try {
+            file = Files.createTempFile(directory, PREFIX, SUFFIX);
+            ColumnarDataFile.write(data, file);
+            Instant now = clock.instant();
+            Entry previous;
+            synchronized (this) {
+                if (!pendingWrites.remove(key, write)) {
+                    log.debug("discarded the write of {}, invalidated while written", key);
+                    deleteQuietly(file);
+                    return;
+                }
+                previous = entries.put(key, new Entry(file.getFileName().toString(), now, now.plus(timeToLive),
+                        validators));
+            }
+            writeIndex();
+            if (previous != null)
+                deleteQuietly(directory.resolve(previous.fileName));
+            log.debug("wrote {} ({} rows) to {}", key, data.size(), file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("could not write {} to {}", key, directory, e);
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Wait for the writes queued so far.
+     */
+    void flush() {
+        Futures.getUnchecked(writer.submit(() -> { }));
+    }
+
+    /**
+     * Remove all the entries of the identifier.
+     */
+    synchronized void invalidate(String identifier) {
+        pendingWrites.keySet().removeIf(key -> key.identifier.equals(identifier));
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().identifier.equals(identifier))
+                invalidate(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove the sorted entries of the identifier.
+     */
+    synchronized void invalidateOrderings(String identifier) {
+        pendingWrites.keySet().removeIf(key -> key.identifier.equals(identifier) && !key.ordering.isEmpty());
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().identifier.equals(identifier) && !entry.getKey().ordering.isEmpty())
+                invalidate(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void invalidate(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            writer.execute(() -> {
+                try {
+                    writeIndex();
+                } catch (IOException ioe) {
+                    log.warn("could not write the index of {}", directory, ioe);
+                }
+                deleteQuietly(directory.resolve(entry.fileName));
+            });
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void loadIndex() throws IOException {
+        Path index = directory.resolve(INDEX);
+        Instant now = clock.instant();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                log.warn("ignoring the index of {}, unsupported version", directory);
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(input.readUTF(), input.readUTF());
+                Entry entry = new Entry(input.readUTF(),
+                        Instant.ofEpochMilli(input.readLong()),
+                        Instant.ofEpochMilli(input.readLong()),
+                        readValidators(input));
+                if (!entry.isExpired(now) && Files.exists(directory.resolve(entry.fileName)))
+                    entries.put(key, entry);
+            }
+            log.info("loaded {} entries from {}", entries.size(), directory);
+        } catch (NoSuchFileException nsfe) {
+            log.debug("no index in {}", directory);
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and move it in place.
+     */
+    private synchronized void writeIndex() throws IOException {
+        Path temporary = Files.createTempFile(directory, INDEX, ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            Map<Key, Entry> snapshot = new HashMap<>(entries);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<Key, Entry> entry : snapshot.entrySet()) {
+                output.writeUTF(entry.getKey().identifier);
+                output.writeUTF(entry.getKey().ordering);
+                output.writeUTF(entry.getValue().fileName);
+                output.writeLong(entry.getValue().writtenAt.toEpochMilli());
+                output.writeLong(entry.getValue().expiresAt.toEpochMilli());
+                writeValidators(output, entry.getValue().validators);
+            }
+        }
+        Files.move(temporary, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Validators readValidators(DataInputStream input) throws IOException {
+        String eTag = input.readBoolean() ? input.readUTF() : null;
+        long lastModified = input.readLong();
+        if (eTag == null && lastModified == NO_LAST_MODIFIED)
+            return null;
+        return Validators.create(eTag, lastModified != NO_LAST_MODIFIED ? Instant.ofEpochMilli(lastModified) : null);
+    }
+
+    private static void writeValidators(DataOutputStream output, Validators validators) throws IOException {
+        Optional<String> eTag = validators != null ? validators.getETag() : Optional.empty();
+        output.writeBoolean(eTag.isPresent());
+        if (eTag.isPresent())
+            output.writeUTF(eTag.get());
+        Optional<Instant> lastModified = validators != null ? validators.getLastModified() : Optional.empty();
+        output.writeLong(lastModified.map(Instant::toEpochMilli).orElse(NO_LAST_MODIFIED));
+    }
+
+    private void deleteUnreferencedFiles() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            referenced.add(entry.fileName);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (!referenced.contains(file.getFileName().toString()))
+                    deleteQuietly(file);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null)
+            return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ioe) {
+            log.warn("could not delete {}", file, ioe);
+        }
+    }
+
+    private static final class Key {
+
+        private final String identifier;
+        private final String ordering;
+
+        private Key(String identifier, String ordering) {
+            this.identifier = checkNotNull(identifier);
+            this.ordering = checkNotNull(ordering);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equal(identifier, key.identifier) &&
+                    Objects.equal(ordering, key.ordering);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(identifier, ordering);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .addValue(identifier)
+                    .add("order", ordering)
+                    .toString();
+        }
+    }
+
+    private static final class Entry {
+
+        private final String fileName;
+        private final Instant writtenAt;
+        private final Instant expiresAt;
+        private final Validators validators;
+        private volatile ColumnarData data;
+
+        private Entry(String fileName, Instant writtenAt, Instant expiresAt, Validators validators) {
+            this.fileName = fileName;
+            this.writtenAt = writtenAt;
+            this.expiresAt = expiresAt;
+            this.validators = validators;
+        }
+
+        private boolean isExpired(Instant now) {
+            return !now.isBefore(expiresAt);
+        }
+
+        private ColumnarData open(Path directory) throws IOException {
+            ColumnarData opened = data;
+            if (opened == null) {
+                opened = ColumnarDataFile.open(directory.resolve(fileName));
+                data = opened;
+            }
+            return opened;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import no.ssb.vtl.model.Dataset;
+
+import java.util.Optional;
+
+/**
+ * A {@link Dataset} backed by a remote resource that supports conditional requests.
+ * <p>
+ * The {@link CachedConnector} uses it to check whether the cached data is still valid
+ * instead of downloading it again (see {@link CachedConnector.Builder#revalidateAfter(java.time.Duration)}).
+ */
+public interface Revalidatable {
+
+    /**
+     * Returns the validators of the last data returned by this dataset, if any.
+     */
+    Optional<Validators> getValidators();
+
+    /**
+     * Sends a conditional request to the remote resource.
+     *
+     * @return true if the resource did not change since the validators were issued.
+     */
+    boolean isNotModified(Validators validators);
+}
@@ -20,9 +20,16 @@ package no.ssb.vtl.connectors.utils;
  * =========================LICENSE_END==================================
  */
 
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.SimpleTimeLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.TimeLimiter;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
 import no.ssb.vtl.connectors.Connector;
 import no.ssb.vtl.connectors.ConnectorException;
 import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
 import no.ssb.vtl.model.Dataset;
 import no.ssb.vtl.model.Filtering;
 import no.ssb.vtl.model.Ordering;
@@ -31,22 +38,37 @@ import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 import static com.google.common.base.MoreObjects.toStringHelper;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
 
 /**
  * A {@link Connector} wrapper that makes sure all streams returned by the datasets
  * will eventually timeout.
+ * <p>
+ * Besides the total duration of a stream, the builder can limit the time to the first data point,
+ * the time between two data points and the throughput of the stream (see {@link #builder(Connector)}).
+ * <p>
+ * The calls that do not return a stream ({@link #getDataset(String)}, {@link #canHandle(String)},
+ * {@link Dataset#getDataStructure()} and {@link Dataset#getData(Ordering)}) can be given a deadline
+ * as well, see {@link Builder#callTimeout(Duration)}. They then run on an executor and are interrupted
+ * when the deadline is exceeded.
+ * <p>
+ * The timeouts are scheduled on a {@link TimeoutScheduler}, the {@link TimeoutScheduler#shared() shared}
+ * one unless another is given.
  */
 public class TimeoutConnector extends ForwardingConnector {
 
@@ -55,42 +77,112 @@ public class TimeoutConnector extends ForwardingConnector {
     private static final String TIMEOUT_ZERO_ERROR = "timeout must be greater than 0";
     private static final Logger logger = LoggerFactory.getLogger(TimeoutConnector.class);
 
-    private final long timeout;
-    private final TimeUnit unit;
-    private final ScheduledExecutorService scheduler;
+    // The policies, disabled when not positive.
+    private final long timeoutNanos;
+    private final long firstRowTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final double minimumThroughput;
+    private final long throughputWindowNanos;
+    private final TimeoutScheduler scheduler;
+    private final Ticker ticker;
+    private final Duration callTimeout;
+    private final TimeLimiter timeLimiter;
 
     private final Connector delegate;
 
-    private TimeoutConnector(Connector delegate, long timeout, TimeUnit unit) {
+    private TimeoutConnector(Connector delegate, long timeout, TimeUnit unit, TimeoutScheduler scheduler) {
         this.delegate = checkNotNull(delegate, DELEGATE_WAS_NULL_ERROR);
-        this.timeout = timeout;
         checkArgument(timeout > 0, TIMEOUT_ZERO_ERROR);
-        this.unit = checkNotNull(unit, UNIT_WAS_NULL_ERROR);
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.timeoutNanos = checkNotNull(unit, UNIT_WAS_NULL_ERROR).toNanos(timeout);
+        this.firstRowTimeoutNanos = -1;
+        this.idleTimeoutNanos = -1;
+        this.minimumThroughput = -1;
+        this.throughputWindowNanos = -1;
+        this.scheduler = checkNotNull(scheduler);
+        this.ticker = Ticker.systemTicker();
+        this.callTimeout = null;
+        this.timeLimiter = null;
+    }
+
+    private TimeoutConnector(Builder builder) {
+        this.delegate = builder.connector;
+        this.timeoutNanos = toNanos(builder.timeout);
+        this.firstRowTimeoutNanos = toNanos(builder.firstRowTimeout);
+        this.idleTimeoutNanos = toNanos(builder.idleTimeout);
+        this.minimumThroughput = builder.minimumThroughput;
+        this.throughputWindowNanos = toNanos(builder.throughputWindow);
+        this.scheduler = builder.scheduler;
+        this.ticker = builder.ticker;
+        this.callTimeout = builder.callTimeout;
+        this.timeLimiter = builder.callTimeout != null ? SimpleTimeLimiter.create(builder.callExecutor) : null;
+    }
+
+    private static long toNanos(Duration duration) {
+        return duration != null ? duration.toNanos() : -1;
+    }
+
+    private boolean hasStreamPolicy() {
+        return timeoutNanos > 0 || firstRowTimeoutNanos > 0 || idleTimeoutNanos > 0 || minimumThroughput > 0;
+    }
+
+    @Override
+    protected Connector delegate() {
+        return this.delegate;
     }
 
     /**
-     * Create a cancel task
+     * Run the callable within the call timeout, if any.
+     *
+     * @throws ConnectorTimeoutException if the deadline was exceeded
      */
-    private static Runnable createCancelTask(ScheduledFuture<?> timeoutTask, Stream<DataPoint> stream, Dataset dataset) {
-        return () -> {
-            if (!timeoutTask.isCancelled()) {
-                logger.debug("stream {} closed, cancelling the scheduled task {}", stream, timeoutTask);
-                timeoutTask.cancel(true);
-            } else {
-                logger.debug("the task {} was already cancelled");
+    private <T> T call(String operation, Callable<T> callable) throws ConnectorException {
+        if (timeLimiter == null) {
+            try {
+                return callable.call();
+            } catch (ConnectorException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ConnectorException(format("%s failed", operation), e);
             }
-        };
+        }
+        try {
+            return timeLimiter.callWithTimeout(callable, callTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException te) {
+            logger.warn("{} did not complete within {}", operation, callTimeout);
+            throw new ConnectorTimeoutException(format("%s did not complete within %s", operation, callTimeout), callTimeout);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(format("interrupted while waiting for %s", operation), ie);
+        } catch (ExecutionException ee) {
+            Throwables.throwIfInstanceOf(ee.getCause(), ConnectorException.class);
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new ConnectorException(format("%s failed", operation), ee.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #call(String, Callable)}, for the methods that cannot throw checked exceptions.
+     *
+     * @throws UncheckedTimeoutException with a {@link ConnectorTimeoutException} cause if the deadline was exceeded
+     */
+    private <T> T callUnchecked(String operation, Callable<T> callable) {
+        try {
+            return call(operation, callable);
+        } catch (ConnectorTimeoutException cte) {
+            throw new UncheckedTimeoutException(cte.getMessage(), cte);
+        } catch (ConnectorException ce) {
+            throw new RuntimeException(ce.getMessage(), ce);
+        }
     }
 
     @Override
-    protected Connector delegate() {
-        return this.delegate;
+    public boolean canHandle(String identifier) {
+        return callUnchecked(format("canHandle(%s)", identifier), () -> super.canHandle(identifier));
     }
 
     @Override
     public Dataset getDataset(String identifier) throws ConnectorException {
-        Dataset dataset = super.getDataset(identifier);
+        Dataset dataset = call(format("getDataset(%s)", identifier), () -> super.getDataset(identifier));
         return new ForwardingDataset() {
 
             @Override
@@ -105,19 +197,29 @@ public class TimeoutConnector extends ForwardingConnector {
                 return dataset;
             }
 
+            @Override
+            public DataStructure getDataStructure() {
+                return callUnchecked(format("getDataStructure() of %s", identifier), dataset::getDataStructure);
+            }
+
+            @Override
+            public Optional<Stream<DataPoint>> getData(Ordering orders) {
+                return callUnchecked(format("getData(%s) of %s", orders, identifier), () -> dataset.getData(orders))
+                        .map(this::wrap);
+            }
+
             @Override
             public Optional<Stream<DataPoint>> getData(Ordering orders, Filtering filtering, Set<String> components) {
                 return dataset.getData(orders, filtering, components).map(this::wrap);
             }
 
             private Stream<DataPoint> wrap(Stream<DataPoint> stream) {
-                // Register timeout task and cancel it if the stream is closed.
-                ScheduledFuture<?> timeoutTask = scheduleTimeoutFor(stream, this);
-                return stream.onClose(
-                        createCancelTask(
-                                timeoutTask, stream, this
-                        )
-                );
+                if (!hasStreamPolicy())
+                    return stream;
+                // Watch the progress of the stream and stop watching when it is closed.
+                StreamWatch watch = new StreamWatch(stream, this);
+                watch.schedule(watch.start);
+                return stream.peek(watch::onRow).onClose(watch::cancel);
             }
 
             @Override
@@ -127,36 +229,236 @@ public class TimeoutConnector extends ForwardingConnector {
         };
     }
 
+    public static TimeoutConnector create(Connector connector, long timeout, TimeUnit unit) {
+        return new TimeoutConnector(connector, timeout, unit, TimeoutScheduler.shared());
+    }
+
+    public static TimeoutConnector create(Connector connector, long timeout, TimeUnit unit, TimeoutScheduler scheduler) {
+        return new TimeoutConnector(connector, timeout, unit, scheduler);
+    }
+
+    public static Builder builder(Connector connector) {
+        return new Builder(connector);
+    }
+
     /**
-     * Schedule a task that will close the given stream.
+     * Follows the progress of a stream and closes it when one of the policies is violated.
+     * <p>
+     * Only one timeout is scheduled at a time, at the earliest time a policy could be violated.
+     * The data points only update counters.
      */
-    private ScheduledFuture<?> scheduleTimeoutFor(Stream<DataPoint> dataStream, Dataset dataset) {
+    private final class StreamWatch implements Runnable {
+
+        private final Stream<DataPoint> stream;
+        private final Dataset dataset;
+        private final long start = ticker.read();
+        private final LongAdder rows = new LongAdder();
+        private volatile long lastRow = start;
+        private volatile boolean closed = false;
+        private volatile TimeoutScheduler.Timeout timeout;
 
-        if (logger.isDebugEnabled()) {
-            Duration duration = Duration.of(this.unit.toNanos(this.timeout), ChronoUnit.NANOS);
-            Instant time = Instant.now().plus(duration);
-            logger.debug("scheduling close time at {} ({} from now)", time, duration);
+        // Accessed by the scheduler thread only.
+        private long checkedAt = start;
+        private long rowsAtCheck = 0;
+
+        private StreamWatch(Stream<DataPoint> stream, Dataset dataset) {
+            this.stream = stream;
+            this.dataset = dataset;
+        }
+
+        private void onRow(DataPoint dataPoint) {
+            rows.increment();
+            if (idleTimeoutNanos > 0)
+                lastRow = ticker.read();
         }
 
-        return scheduler.schedule(createCloseTask(dataStream, dataset), this.timeout, this.unit);
+        private void schedule(long now) {
+            long next = nextCheck();
+            if (next == Long.MAX_VALUE) {
+                // Only the first row timeout was set and a row arrived.
+                logger.debug("no policy left to check for stream {}", stream);
+                return;
+            }
+            if (logger.isDebugEnabled()) {
+                Duration duration = Duration.ofNanos(next - now);
+                logger.debug("scheduling check at {} ({} from now)", Instant.now().plus(duration), duration);
+            }
+            timeout = scheduler.schedule(this, Math.max(next - now, 1), TimeUnit.NANOSECONDS);
+            // The stream might have been closed in between.
+            if (closed)
+                timeout.cancel();
+        }
+
+        /**
+         * Returns the earliest time a policy could be violated, {@link Long#MAX_VALUE} if none can.
+         */
+        private long nextCheck() {
+            long next = Long.MAX_VALUE;
+            if (timeoutNanos > 0)
+                next = Math.min(next, start + timeoutNanos);
+            if (firstRowTimeoutNanos > 0 && rows.sum() == 0)
+                next = Math.min(next, start + firstRowTimeoutNanos);
+            if (idleTimeoutNanos > 0)
+                next = Math.min(next, lastRow + idleTimeoutNanos);
+            if (minimumThroughput > 0)
+                next = Math.min(next, checkedAt + throughputWindowNanos);
+            return next;
+        }
+
+        /**
+         * Returns the violated policy, or null.
+         */
+        private String check(long now) {
+            if (timeoutNanos > 0 && now - start >= timeoutNanos)
+                return format("no end after %s", Duration.ofNanos(timeoutNanos));
+            long count = rows.sum();
+            if (firstRowTimeoutNanos > 0 && count == 0 && now - start >= firstRowTimeoutNanos)
+                return format("no data point after %s", Duration.ofNanos(firstRowTimeoutNanos));
+            if (idleTimeoutNanos > 0 && now - lastRow >= idleTimeoutNanos)
+                return format("no data point for %s", Duration.ofNanos(idleTimeoutNanos));
+            if (minimumThroughput > 0 && now - checkedAt >= throughputWindowNanos) {
+                double throughput = (count - rowsAtCheck) * 1e9 / (now - checkedAt);
+                if (throughput < minimumThroughput)
+                    return format("%.1f data points per second, below %s", throughput, minimumThroughput);
+                checkedAt = now;
+                rowsAtCheck = count;
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            if (closed)
+                return;
+            long now = ticker.read();
+            String violation = check(now);
+            if (violation == null) {
+                schedule(now);
+                return;
+            }
+            logger.warn("closing stream {} of dataset {}: {}", stream, dataset, violation);
+            closed = true;
+            stream.close();
+        }
+
+        /**
+         * Called when the stream is closed.
+         */
+        private void cancel() {
+            closed = true;
+            TimeoutScheduler.Timeout current = timeout;
+            if (current != null && current.cancel())
+                logger.debug("stream {} closed, cancelling the scheduled task {}", stream, current);
+        }
+    }
+
+    private static final class CallExecutorHolder {
+        private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("timeout-connector-call-%d")
+                .setDaemon(true)
+                .build());
     }
 
     /**
-     * Create a Runnable that will close and log a message
+     * Builder for {@link TimeoutConnector}s with several timeout policies. At least one must be set.
      */
-    private Runnable createCloseTask(Stream<DataPoint> dataStream, Dataset dataset) {
-        return () -> {
-            logger.warn("closing stream {} of dataset {}", dataStream, dataset);
-            dataStream.close();
-        };
-    }
+    public static final class Builder {
 
-    public static TimeoutConnector create(Connector connector, long timeout, TimeUnit unit) {
-        return new TimeoutConnector(connector, timeout, unit);
-    }
+        private final Connector connector;
+        private Duration timeout;
+        private Duration firstRowTimeout;
+        private Duration idleTimeout;
+        private double minimumThroughput = -1;
+        private Duration throughputWindow;
+        private TimeoutScheduler scheduler = TimeoutScheduler.shared();
+        private Ticker ticker = Ticker.systemTicker();
+        private Duration callTimeout;
+        private ExecutorService callExecutor;
 
-    @Override
-    protected void finalize() throws Throwable {
-        this.scheduler.shutdown();
+        private Builder(Connector connector) {
+            this.connector = checkNotNull(connector, DELEGATE_WAS_NULL_ERROR);
+        }
+
+        private static Duration checkPositive(Duration duration) {
+            checkArgument(!duration.isNegative() && !duration.isZero(), TIMEOUT_ZERO_ERROR);
+            return duration;
+        }
+
+        /**
+         * Close the streams that are not finished after the given duration.
+         */
+        public Builder timeout(Duration timeout) {
+            this.timeout = checkPositive(timeout);
+            return this;
+        }
+
+        /**
+         * Close the streams that do not return a data point within the given duration.
+         */
+        public Builder firstRowTimeout(Duration timeout) {
+            this.firstRowTimeout = checkPositive(timeout);
+            return this;
+        }
+
+        /**
+         * Close the streams that do not return a data point for the given duration, counted from
+         * the creation of the stream or the last data point.
+         */
+        public Builder idleTimeout(Duration timeout) {
+            this.idleTimeout = checkPositive(timeout);
+            return this;
+        }
+
+        /**
+         * Close the streams that return fewer data points per second than the given minimum, measured
+         * over consecutive windows of the given duration starting at the creation of the stream.
+         */
+        public Builder minimumThroughput(double dataPointsPerSecond, Duration window) {
+            checkArgument(dataPointsPerSecond > 0, "throughput must be greater than 0");
+            this.minimumThroughput = dataPointsPerSecond;
+            this.throughputWindow = checkPositive(window);
+            return this;
+        }
+
+        /**
+         * Limit the duration of the calls that do not return a stream: {@link Connector#getDataset(String)},
+         * {@link Connector#canHandle(String)}, {@link Dataset#getDataStructure()} and opening
+         * {@link Dataset#getData(Ordering)}.
+         * <p>
+         * The calls run on the given executor, or on a shared pool of daemon threads. On timeout they are
+         * interrupted and a {@link ConnectorTimeoutException} is thrown (wrapped in an
+         * {@link UncheckedTimeoutException} by the methods that cannot throw checked exceptions).
+         */
+        public Builder callTimeout(Duration timeout) {
+            this.callTimeout = checkPositive(timeout);
+            return this;
+        }
+
+        public Builder callTimeout(Duration timeout, ExecutorService executor) {
+            this.callExecutor = checkNotNull(executor);
+            return callTimeout(timeout);
+        }
+
+        public Builder scheduler(TimeoutScheduler scheduler) {
+            this.scheduler = checkNotNull(scheduler);
+            return this;
+        }
+
+        /**
+         * The time source of the stream timeouts, {@link Ticker#systemTicker()} by default. The
+         * scheduler should read the same time.
+         */
+        public Builder ticker(Ticker ticker) {
+            this.ticker = checkNotNull(ticker);
+            return this;
+        }
+
+        public TimeoutConnector build() {
+            checkState(timeout != null || firstRowTimeout != null || idleTimeout != null || minimumThroughput > 0
+                    || callTimeout != null, "no timeout policy");
+            if (callTimeout != null && callExecutor == null)
+                callExecutor = CallExecutorHolder.INSTANCE;
+            return new TimeoutConnector(this);
+        }
     }
 }
@@ -0,0 +1,394 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.google.common.base.Ticker;
+import com.google.common.math.LongMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A hashed wheel timer for timeouts that are usually cancelled before they expire.
+ * <p>
+ * The timeouts are put in a wheel of buckets, one per tick. A single thread advances the wheel
+ * every tick and runs the tasks of the expired timeouts. Scheduling and cancelling only add the
+ * timeout to a queue that the thread drains, both are O(1). The precision is the tick duration.
+ * <p>
+ * The tasks run on the timer thread and must be short. The {@link #shared()} instance is used by
+ * all the {@link TimeoutConnector}s that are not given one.
+ * <p>
+ * A scheduler created with a {@link Ticker} has no thread: the ticks elapsed according to the ticker
+ * are run by {@link #advance()}, on the calling thread.
+ */
+public final class TimeoutScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeoutScheduler.class);
+
+    private static final Duration DEFAULT_TICK = Duration.ofMillis(10);
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // Upper bound of the timeouts moved to the wheel per tick, the rest wait for the next one.
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private static final int CREATED = 0;
+    private static final int STARTED = 1;
+    private static final int CLOSED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Ticker ticker;
+    private final long startTime;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(CREATED);
+    private final Thread worker;
+
+    // The next tick to run, accessed by the thread that runs the ticks only.
+    private long tick = 0;
+
+    private final LongAdder scheduledCount = new LongAdder();
+    private final LongAdder firedCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+
+    /**
+     * Create a scheduler with the given tick duration and number of buckets (rounded up to a power of two).
+     */
+    public TimeoutScheduler(Duration tick, int wheelSize) {
+        this(tick, wheelSize, Ticker.systemTicker(), true);
+    }
+
+    /**
+     * Create a scheduler without thread that reads the time from the given ticker. The timeouts
+     * expire when {@link #advance()} is called.
+     */
+    TimeoutScheduler(Duration tick, int wheelSize, Ticker ticker) {
+        this(tick, wheelSize, ticker, false);
+    }
+
+    private TimeoutScheduler(Duration tick, int wheelSize, Ticker ticker, boolean threaded) {
+        checkArgument(!tick.isNegative() && !tick.isZero(), "tick must be positive");
+        checkArgument(wheelSize > 0 && wheelSize <= 1 << 30, "wheel size must be between 1 and 2^30");
+        this.tickNanos = tick.toNanos();
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        if (wheelSize == 1)
+            size = 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.ticker = checkNotNull(ticker);
+        this.startTime = ticker.read();
+        this.worker = !threaded ? null : new ThreadFactoryBuilder()
+                .setNameFormat("timeout-scheduler-%d")
+                .setDaemon(true)
+                .build()
+                .newThread(this::run);
+    }
+
+    public TimeoutScheduler() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Returns the scheduler shared by the whole process.
+     * <p>
+     * Its thread is a daemon thread that is started on first use; it should not be closed.
+     */
+    public static TimeoutScheduler shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    /**
+     * Run the task after the given delay, unless the returned timeout is cancelled before.
+     *
+     * @throws IllegalStateException if the scheduler was closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        checkNotNull(task);
+        checkNotNull(unit);
+        start();
+        long deadline = LongMath.saturatedAdd(ticker.read() - startTime, unit.toNanos(delay));
+        Timeout timeout = new Timeout(task, deadline);
+        added.add(timeout);
+        scheduledCount.increment();
+        return timeout;
+    }
+
+    private void start() {
+        int current = state.get();
+        if (current == CREATED && state.compareAndSet(CREATED, STARTED)) {
+            if (worker != null)
+                worker.start();
+        } else {
+            checkState(current != CLOSED, "the scheduler was closed");
+        }
+    }
+
+    /**
+     * Stop the scheduler thread. The pending timeouts never expire.
+     */
+    @Override
+    public void close() {
+        if (state.getAndSet(CLOSED) == STARTED && worker != null)
+            LockSupport.unpark(worker);
+    }
+
+    /**
+     * Returns the number of timeouts scheduled so far.
+     */
+    public long getScheduledCount() {
+        return scheduledCount.sum();
+    }
+
+    /**
+     * Returns the number of timeouts that expired and ran their task.
+     */
+    public long getFiredCount() {
+        return firedCount.sum();
+    }
+
+    /**
+     * Returns the number of timeouts cancelled before they expired.
+     */
+    public long getCancelledCount() {
+        return cancelledCount.sum();
+    }
+
+    /**
+     * Returns the number of timeouts that are neither expired nor cancelled.
+     */
+    public long getPendingCount() {
+        return getScheduledCount() - getFiredCount() - getCancelledCount();
+    }
+
+    /**
+     * Run the ticks that ended according to the ticker, expiring their timeouts.
+     *
+     * @throws IllegalStateException if the scheduler has a thread
+     */
+    void advance() {
+        checkState(worker == null, "the ticks are run by the scheduler thread");
+        synchronized (this) {
+            long now = ticker.read() - startTime;
+            while (state.get() != CLOSED && tickNanos * (tick + 1) <= now) {
+                runTick();
+            }
+        }
+    }
+
+    private void run() {
+        while (state.get() == STARTED) {
+            if (!waitForNextTick(tick))
+                break;
+            runTick();
+        }
+        log.debug("timeout scheduler stopped with {} pending timeouts", getPendingCount());
+    }
+
+    private void runTick() {
+        removeCancelled();
+        transferAdded(tick);
+        wheel[(int) (tick & mask)].expire();
+        tick++;
+    }
+
+    /**
+     * Park until the end of the given tick.
+     *
+     * @return false if the scheduler was closed
+     */
+    private boolean waitForNextTick(long tick) {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (ticker.read() - startTime);
+            if (sleepNanos <= 0)
+                return true;
+            LockSupport.parkNanos(this, sleepNanos);
+            if (state.get() == CLOSED)
+                return false;
+        }
+    }
+
+    private void transferAdded(long tick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null)
+                return;
+            if (timeout.state.get() != Timeout.WAITING)
+                continue;
+            long expiresAt = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiresAt - tick) / wheel.length;
+            // Timeouts already in the past expire with the current tick.
+            long bucket = Math.max(expiresAt, tick);
+            wheel[(int) (bucket & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Accessed by the scheduler thread only.
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return false if it already expired or was cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            cancelledCount.increment();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        @Override
+        public String toString() {
+            return toStringHelper(this)
+                    .addValue(task)
+                    .add("cancelled", isCancelled())
+                    .add("expired", isExpired())
+                    .toString();
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED))
+                return;
+            firedCount.increment();
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                log.warn("timeout task {} failed", task, re);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts of a tick.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Expire the timeouts of the current round, the others are one round closer.
+         */
+        private void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            if (timeout.previous != null)
+                timeout.previous.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.previous = timeout.previous;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.previous;
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private static final class SharedHolder {
+        private static final TimeoutScheduler INSTANCE = new TimeoutScheduler();
+    }
+}
@@ -0,0 +1,89 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.base.Objects;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * The validators (entity tag and last modification date) of a remote resource.
+ * <p>
+ * Used to ask the remote service whether the data changed (see {@link Revalidatable}).
+ */
+public final class Validators {
+
+    private final String eTag;
+    private final Instant lastModified;
+
+    private Validators(String eTag, Instant lastModified) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Create validators, both values can be null.
+     */
+    public static Validators create(String eTag, Instant lastModified) {
+        return new Validators(eTag, lastModified);
+    }
+
+    public Optional<String> getETag() {
+        return Optional.ofNullable(eTag);
+    }
+
+    public Optional<Instant> getLastModified() {
+        return Optional.ofNullable(lastModified);
+    }
+
+    /**
+     * Returns true if neither the entity tag nor the last modification date are known.
+     */
+    public boolean isEmpty() {
+        return eTag == null && lastModified == null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Validators that = (Validators) o;
+        return Objects.equal(eTag, that.eTag) &&
+                Objects.equal(lastModified, that.lastModified);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(eTag, lastModified);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("eTag", eTag)
+                .add("lastModified", lastModified)
+                .toString();
+    }
+}
@@ -0,0 +1,194 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor that runs each task in a new virtual thread when the JDK supports them (21 and
+ * later), and in a bounded pool of daemon platform threads otherwise.
+ * <p>
+ * At most <code>maxConcurrency</code> tasks run at the same time. With virtual threads the
+ * waiting tasks block on a semaphore, which only costs a small stack on the heap; with
+ * platform threads they wait in the queue of the pool.
+ * <p>
+ * This is meant for tasks that spend most of their time blocked on I/O, like the producers
+ * that read the HTTP responses in the connectors.
+ */
+public final class VirtualThreadExecutor implements Executor {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    private final String name;
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final ThreadFactory virtualThreads;
+    private final ThreadPoolExecutor platformThreads;
+
+    private VirtualThreadExecutor(String name, int maxConcurrency, ThreadFactory virtualThreads) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        this.virtualThreads = virtualThreads;
+        if (virtualThreads == null) {
+            this.platformThreads = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+            this.platformThreads.allowCoreThreadTimeOut(true);
+        } else {
+            this.platformThreads = null;
+        }
+    }
+
+    /**
+     * Create an executor that runs at most <code>maxConcurrency</code> tasks at the same time.
+     *
+     * @param name           the prefix of the thread names
+     * @param maxConcurrency the maximum number of tasks running at the same time
+     */
+    public static VirtualThreadExecutor create(String name, int maxConcurrency) {
+        checkNotNull(name);
+        checkArgument(maxConcurrency > 0, "max concurrency must be positive");
+        return new VirtualThreadExecutor(name, maxConcurrency, VirtualThreadSupport.factory(name).orElse(null));
+    }
+
+    /**
+     * Create an executor that always uses platform threads.
+     */
+    static VirtualThreadExecutor createPlatform(String name, int maxConcurrency) {
+        checkNotNull(name);
+        checkArgument(maxConcurrency > 0, "max concurrency must be positive");
+        return new VirtualThreadExecutor(name, maxConcurrency, null);
+    }
+
+    /**
+     * Returns true if the running JDK supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return VirtualThreadSupport.SUPPORTED;
+    }
+
+    /**
+     * Returns true if the tasks run in virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtualThreads != null;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Returns the number of tasks currently running.
+     */
+    public int getActiveCount() {
+        return isVirtual() ? maxConcurrency - permits.availablePermits() : platformThreads.getActiveCount();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        checkNotNull(command);
+        if (!isVirtual()) {
+            platformThreads.execute(command);
+            return;
+        }
+        virtualThreads.newThread(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        }).start();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("name", name)
+                .add("virtual", isVirtual())
+                .add("maxConcurrency", maxConcurrency)
+                .add("active", getActiveCount())
+                .toString();
+    }
+
+    /**
+     * Looks up <code>Thread.ofVirtual()</code> with reflection so that this compiles and runs
+     * on Java 8.
+     */
+    private static final class VirtualThreadSupport {
+
+        private static final Method OF_VIRTUAL;
+        private static final Method NAME;
+        private static final Method FACTORY;
+        private static final boolean SUPPORTED;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method factory = null;
+            boolean supported = false;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class, long.class);
+                factory = builder.getMethod("factory");
+                // Fails when virtual threads are a preview feature that is not enabled.
+                factory.invoke(ofVirtual.invoke(null));
+                supported = true;
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                log.debug("virtual threads are not supported, using platform threads", e);
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            FACTORY = factory;
+            SUPPORTED = supported;
+        }
+
+        private static Optional<ThreadFactory> factory(String prefix) {
+            if (!SUPPORTED)
+                return Optional.empty();
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 0L);
+                return Optional.of((ThreadFactory) FACTORY.invoke(builder));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.warn("could not create virtual threads, using platform threads", e);
+                return Optional.empty();
+            }
+        }
+    }
+}
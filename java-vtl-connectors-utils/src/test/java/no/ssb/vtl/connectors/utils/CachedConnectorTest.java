@@ -0,0 +1,496 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.collect.ImmutableSet;
+import no.ssb.vtl.connectors.Connector;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.Dataset;
+import no.ssb.vtl.model.Filtering;
+import no.ssb.vtl.model.Ordering;
+import no.ssb.vtl.model.VTLObject;
+import no.ssb.vtl.model.VtlOrdering;
+import org.assertj.core.api.JUnitSoftAssertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachedConnectorTest {
+
+    @Rule
+    public final JUnitSoftAssertions softly = new JUnitSoftAssertions();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final DataStructure STRUCTURE = DataStructure.builder()
+            .put("id", Component.Role.IDENTIFIER, String.class)
+            .put("value", Component.Role.MEASURE, Double.class)
+            .build();
+
+    private Connector connector;
+    private AtomicInteger reads;
+
+    @Before
+    public void setUp() throws Exception {
+        reads = new AtomicInteger();
+        connector = mock(Connector.class);
+        when(connector.getDataset(anyString())).thenAnswer(invocation ->
+                new TestDataset(STRUCTURE, TestHelpers.createData(100), reads)
+        );
+    }
+
+    @Test
+    public void testDataIsCached() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+
+        Dataset dataset = cachedConnector.getDataset("test");
+        List<DataPoint> first = dataset.getData().collect(toList());
+        List<DataPoint> second = dataset.getData().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(second).containsExactlyElementsOf(first);
+        softly.assertThat(cachedConnector.getCacheStats().get("sortable").hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMaximumWeightEvicts() throws Exception {
+        ColumnarData.Builder builder = ColumnarData.builder();
+        TestHelpers.createData(100).forEach(builder::add);
+        long oneDataset = builder.build(STRUCTURE).estimateSize();
+        CachedConnector cachedConnector = CachedConnector.builder(connector)
+                .maximumWeight(oneDataset * 2 + oneDataset / 2)
+                .build();
+
+        for (String identifier : new String[]{"first", "second", "third"}) {
+            try (Stream<DataPoint> data = cachedConnector.getDataset(identifier).getData()) {
+                data.forEach(dataPoint -> {
+                });
+            }
+        }
+
+        softly.assertThat(reads.get()).isEqualTo(3);
+        softly.assertThat(cachedConnector.getCacheStats().get("sortable").evictionCount()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.builder(connector)
+                .statisticsPrefix(identifier -> identifier.substring(0, identifier.indexOf('/')))
+                .build();
+
+        for (String identifier : new String[]{"a/first", "a/second", "b/first", "a/first"}) {
+            try (Stream<DataPoint> data = cachedConnector.getDataset(identifier).getData()) {
+                data.forEach(dataPoint -> {
+                });
+            }
+        }
+
+        CacheStatistics sortable = cachedConnector.getStatistics().get("sortable");
+        softly.assertThat(sortable.getSize()).isEqualTo(3);
+        softly.assertThat(sortable.getEstimatedBytes()).isGreaterThan(0);
+        softly.assertThat(sortable.getStats().loadSuccessCount()).isEqualTo(3);
+        softly.assertThat(sortable.getStats().hitCount()).isEqualTo(1);
+
+        Map<String, CacheStatistics> byPrefix = cachedConnector.getStatisticsByPrefix();
+        softly.assertThat(byPrefix.keySet()).containsExactly("a", "b");
+        softly.assertThat(byPrefix.get("a").getSize()).isEqualTo(2);
+        softly.assertThat(byPrefix.get("a").getStats().hitCount()).isEqualTo(1);
+        softly.assertThat(byPrefix.get("a").getStats().loadSuccessCount()).isEqualTo(2);
+        softly.assertThat(byPrefix.get("b").getEstimatedBytes())
+                .isEqualTo(sortable.getEstimatedBytes() / 3);
+    }
+
+    @Test
+    public void testConcurrentReadersShareTheLoad() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        List<DataPoint> expected = TestHelpers.createData(100);
+
+        int threads = 10;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<DataPoint>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    barrier.await();
+                    try (Stream<DataPoint> data = dataset.getData()) {
+                        return data.collect(toList());
+                    }
+                }));
+            }
+            for (Future<List<DataPoint>> result : results) {
+                softly.assertThat(result.get()).containsExactlyElementsOf(expected);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testConcurrentReadersGetTheirOwnDataPoints() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        List<DataPoint> expected = TestHelpers.createData(100);
+
+        Iterator<DataPoint> first = dataset.getData().iterator();
+        Iterator<DataPoint> second = dataset.getData().iterator();
+        List<DataPoint> secondData = new ArrayList<>();
+        while (first.hasNext()) {
+            first.next().set(1, VTLObject.NULL);
+            secondData.add(second.next());
+        }
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(secondData).containsExactlyElementsOf(expected);
+        softly.assertThat(dataset.getData().collect(toList())).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void testSortedFromCachedData() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        dataset.getData().forEach(dataPoint -> {
+        });
+
+        Ordering order = VtlOrdering.using(STRUCTURE).desc("value").build();
+        List<DataPoint> sorted = dataset.getData(order).get().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(sorted).containsExactlyElementsOf(
+                TestHelpers.createData(100).stream().sorted(order).collect(toList())
+        );
+    }
+
+    @Test
+    public void testSortedFromCachedPrefix() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        Ordering byValue = VtlOrdering.using(STRUCTURE).desc("value").build();
+        Ordering byValueAndId = VtlOrdering.using(STRUCTURE).desc("value").asc("id").build();
+
+        dataset.getData(byValueAndId).get().forEach(dataPoint -> {
+        });
+        List<DataPoint> prefix = dataset.getData(byValue).get().collect(toList());
+        Ordering byValueAndIdDesc = VtlOrdering.using(STRUCTURE).desc("value").desc("id").build();
+        List<DataPoint> derived = dataset.getData(byValueAndIdDesc).get().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(prefix).containsExactlyElementsOf(
+                TestHelpers.createData(100).stream().sorted(byValue).collect(toList())
+        );
+        softly.assertThat(derived).containsExactlyElementsOf(
+                TestHelpers.createData(100).stream().sorted(byValueAndIdDesc).collect(toList())
+        );
+    }
+
+    @Test
+    public void testFilteringAndProjectionFromCache() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        dataset.getData().forEach(dataPoint -> {
+        });
+
+        Ordering order = VtlOrdering.using(STRUCTURE).asc("id").build();
+        ColumnFiltering filtering = ColumnFiltering.equalTo(STRUCTURE, "id", "id42", "id7");
+        List<DataPoint> filtered = dataset.getData(order, filtering, ImmutableSet.of("value"))
+                .get().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(filtered).containsExactly(
+                DataPoint.create(VTLObject.NULL, VTLObject.of(42.0)),
+                DataPoint.create(VTLObject.NULL, VTLObject.of(7.0))
+        );
+    }
+
+    @Test
+    public void testOtherFilteringsReadWholeDataPoints() throws Exception {
+        CachedConnector cachedConnector = CachedConnector.create(connector);
+        Dataset dataset = cachedConnector.getDataset("test");
+        dataset.getData().forEach(dataPoint -> {
+        });
+
+        Ordering order = VtlOrdering.using(STRUCTURE).asc("id").build();
+        Filtering filtering = dataPoint -> dataPoint.get(1).get().equals(42.0);
+        List<DataPoint> filtered = dataset.getData(order, filtering, ImmutableSet.of("value"))
+                .get().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(filtered).containsExactly(
+                DataPoint.create(VTLObject.of("id42"), VTLObject.of(42.0))
+        );
+    }
+
+    @Test
+    public void testPersistentDataSurvivesRestart() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        CachedConnector first = CachedConnector.builder(connector)
+                .persistent(directory, Duration.ofHours(1))
+                .build();
+        first.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        TestHelpers.await(() -> Files.exists(directory.resolve("index")));
+
+        CachedConnector restarted = CachedConnector.builder(connector)
+                .persistent(directory, Duration.ofHours(1))
+                .build();
+        Dataset dataset = restarted.getDataset("test");
+        List<DataPoint> data = dataset.getData().collect(toList());
+
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(data).containsExactlyElementsOf(TestHelpers.createData(100));
+        softly.assertThat(dataset.getDataStructure().keySet()).containsExactly("id", "value");
+        verify(connector, times(1)).getDataset("test");
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        AtomicBoolean modified = new AtomicBoolean(false);
+        AtomicInteger revalidations = new AtomicInteger();
+        when(connector.getDataset(anyString())).thenAnswer(invocation ->
+                new RevalidatableTestDataset(STRUCTURE, TestHelpers.createData(100), reads, revalidations, modified)
+        );
+        CachedConnector cachedConnector = CachedConnector.builder(connector)
+                .revalidateAfter(Duration.ofNanos(1))
+                .build();
+
+        cachedConnector.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        cachedConnector.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(revalidations.get()).isEqualTo(1);
+
+        modified.set(true);
+        cachedConnector.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        softly.assertThat(reads.get()).isEqualTo(2);
+        softly.assertThat(revalidations.get()).isEqualTo(2);
+        verify(connector, times(2)).getDataset("test");
+    }
+
+    @Test
+    public void testRevalidationAfterRestart() throws Exception {
+        AtomicInteger revalidations = new AtomicInteger();
+        when(connector.getDataset(anyString())).thenAnswer(invocation ->
+                new RevalidatableTestDataset(STRUCTURE, TestHelpers.createData(100), reads, revalidations,
+                        new AtomicBoolean(false))
+        );
+        Path directory = folder.newFolder().toPath();
+        CachedConnector first = CachedConnector.builder(connector)
+                .persistent(directory, Duration.ofHours(1))
+                .revalidateAfter(Duration.ofNanos(1))
+                .build();
+        first.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        TestHelpers.await(() -> Files.exists(directory.resolve("index")));
+
+        CachedConnector restarted = CachedConnector.builder(connector)
+                .persistent(directory, Duration.ofHours(1))
+                .revalidateAfter(Duration.ofNanos(1))
+                .build();
+        restarted.getDataset("test").getData().forEach(dataPoint -> {
+        });
+        List<DataPoint> data = restarted.getDataset("test").getData().collect(toList());
+
+        softly.assertThat(revalidations.get()).isEqualTo(1);
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(data).containsExactlyElementsOf(TestHelpers.createData(100));
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        AtomicBoolean modified = new AtomicBoolean(false);
+        AtomicInteger revalidations = new AtomicInteger();
+        // The data changes after the first read.
+        when(connector.getDataset(anyString())).thenAnswer(invocation ->
+                new RevalidatableTestDataset(STRUCTURE, TestHelpers.createData(reads.get() == 0 ? 100 : 50), reads,
+                        revalidations, modified)
+        );
+        TestHelpers.FakeTicker ticker = new TestHelpers.FakeTicker();
+        CachedConnector cachedConnector = CachedConnector.builder(connector)
+                .ticker(ticker)
+                .revalidateAfter(Duration.ofSeconds(1))
+                .refreshAhead(Duration.ofMillis(500), "test"::equals)
+                .refreshExecutor(Runnable::run)
+                .build();
+        Ordering order = VtlOrdering.using(STRUCTURE).desc("value").build();
+
+        Dataset first = cachedConnector.getDataset("test");
+        first.getData().forEach(dataPoint -> {
+        });
+        first.getData(order).get().forEach(dataPoint -> {
+        });
+        Dataset second = cachedConnector.getDataset("test");
+        softly.assertThat(second).isSameAs(first);
+        softly.assertThat(revalidations.get()).isEqualTo(0);
+
+        // In the refresh window, not modified.
+        ticker.advance(Duration.ofMillis(600));
+        softly.assertThat(cachedConnector.getDataset("test")).isSameAs(first);
+        softly.assertThat(reads.get()).isEqualTo(1);
+        softly.assertThat(revalidations.get()).isEqualTo(1);
+
+        // In the refresh window again, modified: the stale dataset is served while refreshed.
+        ticker.advance(Duration.ofMillis(600));
+        modified.set(true);
+        Dataset stale = cachedConnector.getDataset("test");
+        softly.assertThat(stale).isSameAs(first);
+        softly.assertThat(reads.get()).isEqualTo(2);
+        softly.assertThat(revalidations.get()).isEqualTo(2);
+
+        modified.set(false);
+        Dataset refreshed = cachedConnector.getDataset("test");
+        softly.assertThat(refreshed).isNotSameAs(first);
+        softly.assertThat(refreshed.getData().collect(toList())).containsExactlyElementsOf(TestHelpers.createData(50));
+        softly.assertThat(refreshed.getData(order).get().collect(toList())).containsExactlyElementsOf(
+                TestHelpers.createData(50).stream().sorted(order).collect(toList())
+        );
+        softly.assertThat(reads.get()).isEqualTo(2);
+        verify(connector, times(2)).getDataset("test");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRefreshAheadMustBeShorterThanRevalidateAfter() throws Exception {
+        CachedConnector.builder(connector)
+                .revalidateAfter(Duration.ofHours(1))
+                .refreshAhead(Duration.ofHours(2), "test"::equals)
+                .build();
+    }
+
+    /**
+     * Like the datasets of the RestTemplateConnector, the validators are known once the data is read.
+     */
+    static final class RevalidatableTestDataset extends ForwardingDataset implements Revalidatable {
+
+        private static final Validators VALIDATORS = Validators.create("\"v1\"", null);
+
+        private final TestDataset dataset;
+        private final AtomicInteger revalidations;
+        private final AtomicBoolean modified;
+        private volatile boolean read;
+
+        RevalidatableTestDataset(DataStructure structure, List<DataPoint> data, AtomicInteger reads,
+                                 AtomicInteger revalidations, AtomicBoolean modified) {
+            this.dataset = new TestDataset(structure, data, reads);
+            this.revalidations = revalidations;
+            this.modified = modified;
+        }
+
+        @Override
+        protected Dataset delegate() {
+            return dataset;
+        }
+
+        @Override
+        public Stream<DataPoint> getData() {
+            read = true;
+            return super.getData();
+        }
+
+        @Override
+        public Optional<Stream<DataPoint>> getData(Ordering orders) {
+            read = true;
+            return super.getData(orders);
+        }
+
+        @Override
+        public Optional<Validators> getValidators() {
+            return read ? Optional.of(VALIDATORS) : Optional.empty();
+        }
+
+        @Override
+        public boolean isNotModified(Validators validators) {
+            revalidations.incrementAndGet();
+            return validators.equals(VALIDATORS) && !modified.get();
+        }
+    }
+
+    static final class TestDataset implements Dataset {
+
+        private final DataStructure structure;
+        private final List<DataPoint> data;
+        private final AtomicInteger reads;
+
+        TestDataset(DataStructure structure, List<DataPoint> data, AtomicInteger reads) {
+            this.structure = structure;
+            this.data = data;
+            this.reads = reads;
+        }
+
+        @Override
+        public Stream<DataPoint> getData() {
+            reads.incrementAndGet();
+            return data.stream();
+        }
+
+        @Override
+        public Optional<Stream<DataPoint>> getData(Ordering orders) {
+            reads.incrementAndGet();
+            return Optional.of(data.stream().sorted(orders));
+        }
+
+        @Override
+        public Optional<Map<String, Integer>> getDistinctValuesCount() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Long> getSize() {
+            return Optional.of((long) data.size());
+        }
+
+        @Override
+        public DataStructure getDataStructure() {
+            return structure;
+        }
+    }
+}
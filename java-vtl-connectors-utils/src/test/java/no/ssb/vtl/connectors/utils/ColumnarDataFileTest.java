@@ -0,0 +1,97 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import no.ssb.vtl.model.DataPoint;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColumnarDataFileTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndOpen() throws Exception {
+        List<DataPoint> data = TestHelpers.createTypedData();
+        ColumnarData.Builder builder = ColumnarData.builder();
+        data.forEach(builder::add);
+
+        Path file = folder.newFile().toPath();
+        ColumnarDataFile.write(builder.build(TestHelpers.TYPED_STRUCTURE), file);
+        ColumnarData mapped = ColumnarDataFile.open(file);
+
+        assertThat(mapped.size()).isEqualTo(data.size());
+        assertThat(mapped.getStructure().getRoles()).isEqualTo(TestHelpers.TYPED_STRUCTURE.getRoles());
+        assertThat(mapped.getStructure().getTypes()).isEqualTo(TestHelpers.TYPED_STRUCTURE.getTypes());
+        assertThat(mapped.stream().collect(toList())).containsExactlyElementsOf(data);
+    }
+
+    @Test
+    public void testTierDeletesInvalidatedFiles() throws Exception {
+        ColumnarData.Builder builder = ColumnarData.builder();
+        TestHelpers.createTypedData().forEach(builder::add);
+        Path directory = folder.newFolder().toPath();
+
+        MappedDataTier tier = new MappedDataTier(directory, 1024 * 1024);
+        tier.put("key", builder.build(TestHelpers.TYPED_STRUCTURE));
+
+        assertThat(tier.getIfPresent("key")).isNotNull();
+        assertThat(Files.list(directory).count()).isEqualTo(1);
+
+        tier.invalidate("key");
+        assertThat(tier.getIfPresent("key")).isNull();
+        assertThat(Files.list(directory).count()).isEqualTo(0);
+    }
+
+    @Test
+    public void testInvalidateCancelsQueuedSpill() throws Exception {
+        ColumnarData.Builder builder = ColumnarData.builder();
+        TestHelpers.createTypedData().forEach(builder::add);
+        ColumnarData data = builder.build(TestHelpers.TYPED_STRUCTURE);
+        Path directory = folder.newFolder().toPath();
+
+        List<Runnable> queued = new ArrayList<>();
+        MappedDataTier tier = new MappedDataTier(directory, 1024 * 1024, queued::add);
+        tier.<String>spillListener().onRemoval(RemovalNotification.create("key", data, RemovalCause.SIZE));
+        tier.<String>spillListener().onRemoval(RemovalNotification.create("other", data, RemovalCause.SIZE));
+        assertThat(queued).hasSize(2);
+
+        tier.invalidate("key");
+        queued.forEach(Runnable::run);
+
+        assertThat(tier.getIfPresent("key")).isNull();
+        assertThat(tier.getIfPresent("other")).isNotNull();
+        assertThat(Files.list(directory).count()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,100 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColumnarDataTest {
+
+    private static final DataStructure STRUCTURE = TestHelpers.TYPED_STRUCTURE;
+
+    private static List<DataPoint> createData() {
+        return TestHelpers.createTypedData();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        List<DataPoint> data = createData();
+
+        ColumnarData.Builder builder = ColumnarData.builder();
+        data.forEach(builder::add);
+        ColumnarData columnarData = builder.build(STRUCTURE);
+
+        assertThat(columnarData.size()).isEqualTo(4);
+        assertThat(columnarData.column(2)).isInstanceOf(ColumnarData.LongColumn.class);
+        assertThat(columnarData.column(3)).isInstanceOf(ColumnarData.DoubleColumn.class);
+        assertThat(columnarData.stream().collect(toList())).containsExactlyElementsOf(data);
+    }
+
+    @Test
+    public void testMixedNumbersAreDictionaryEncoded() {
+        List<DataPoint> data = Arrays.asList(
+                TestHelpers.point(1L),
+                TestHelpers.point((Object) null),
+                TestHelpers.point(2.5),
+                TestHelpers.point(1L)
+        );
+
+        ColumnarData.Builder builder = ColumnarData.builder();
+        data.forEach(builder::add);
+        ColumnarData columnarData = builder.build(DataStructure.builder()
+                .put("mixed", Component.Role.MEASURE, Number.class)
+                .build());
+
+        assertThat(columnarData.column(0)).isInstanceOf(ColumnarData.DictionaryColumn.class);
+        assertThat(columnarData.stream().collect(toList())).containsExactlyElementsOf(data);
+    }
+
+    @Test
+    public void testIdentifiersAreIndexed() {
+        ColumnarData.Builder builder = ColumnarData.builder();
+        createData().forEach(builder::add);
+        ColumnarData columnarData = builder.build(STRUCTURE);
+
+        ColumnFiltering filtering = ColumnFiltering.equalTo(STRUCTURE, "region", "0101")
+                .and("code", "a", "b");
+        assertThat(columnarData.select(filtering).toArray()).containsExactly(1);
+        assertThat(columnarData.select(ColumnFiltering.equalTo(STRUCTURE, "region", "0301", "0101"))
+                .toArray()).containsExactly(1, 2, 3);
+        assertThat(columnarData.select(ColumnFiltering.equalTo(STRUCTURE, "count", 1L))
+                .toArray()).containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void testColumnFilteringComparesNumbersByValue() {
+        List<DataPoint> data = createData();
+
+        assertThat(data.stream().filter(ColumnFiltering.equalTo(STRUCTURE, "count", 1, 4)).collect(toList()))
+                .containsExactly(data.get(0), data.get(3));
+        assertThat(data.stream().filter(ColumnFiltering.equalTo(STRUCTURE, "value", 2.5f)).collect(toList()))
+                .containsExactly(data.get(1));
+    }
+}
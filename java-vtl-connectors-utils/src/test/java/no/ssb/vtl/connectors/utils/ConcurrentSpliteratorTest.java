@@ -20,21 +20,35 @@ package no.ssb.vtl.connectors.utils;
  * =========================LICENSE_END==================================
  */
 
+import no.ssb.vtl.model.DataPoint;
 import org.assertj.core.util.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
 import java.util.Spliterator;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class ConcurrentSpliteratorTest {
 
-    // TODO
-    //@Test
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
     public void test() throws Exception {
 
         List<Integer> range = IntStream.rangeClosed(1, 100)
@@ -46,10 +60,10 @@ public class ConcurrentSpliteratorTest {
                 range::spliterator
         );
 
-        List<List<Integer>> lists = Lists.newArrayList();
+        List<List<Integer>> lists = Collections.synchronizedList(Lists.newArrayList());
 
         int threads = 2;
-        CyclicBarrier barrier = new CyclicBarrier(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads + 1);
         for (int i = 0; i < threads; i++) {
             Thread thread = new Thread(() -> {
                 List<Integer> list = Lists.newArrayList();
@@ -78,9 +92,155 @@ public class ConcurrentSpliteratorTest {
         }
 
         barrier.await();
+        assertThat(lists).hasSize(threads);
         for (List<Integer> list : lists) {
             assertThat(list).containsExactlyElementsOf(range);
         }
 
     }
+
+    @Test
+    public void testSourceIsReadOnce() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        List<Integer> range = IntStream.rangeClosed(1, 1000)
+                .boxed().collect(Collectors.toList());
+
+        ConcurrentSpliterator<Integer> concurrentSpliterator = ConcurrentSpliterator.create(
+                Integer.MAX_VALUE,
+                () -> {
+                    reads.incrementAndGet();
+                    return range.spliterator();
+                }
+        );
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Integer>>> results = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> StreamSupport.stream(concurrentSpliterator.get(), false)
+                        .collect(Collectors.toList())));
+            }
+            for (Future<List<Integer>> result : results) {
+                assertThat(result.get()).containsExactlyElementsOf(range);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(reads.get()).isEqualTo(1);
+        assertThat(concurrentSpliterator.isDone()).isTrue();
+    }
+
+    @Test
+    public void testReadersTailAcrossSegments() throws Exception {
+        List<Integer> range = IntStream.range(0, 10_000)
+                .boxed().collect(Collectors.toList());
+
+        ConcurrentSpliterator<Integer> concurrentSpliterator = ConcurrentSpliterator.create(
+                Integer.MAX_VALUE,
+                range::spliterator
+        );
+
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Integer>>> results = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                boolean oneByOne = i % 2 == 0;
+                results.add(executor.submit(() -> {
+                    List<Integer> list = Lists.newArrayList();
+                    Spliterator<Integer> spliterator = concurrentSpliterator.get();
+                    barrier.await();
+                    if (oneByOne) {
+                        while (spliterator.tryAdvance(list::add)) {
+                        }
+                    } else {
+                        spliterator.forEachRemaining(list::add);
+                    }
+                    return list;
+                }));
+            }
+            for (Future<List<Integer>> result : results) {
+                assertThat(result.get()).containsExactlyElementsOf(range);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(concurrentSpliterator.size()).isEqualTo(range.size());
+    }
+
+    @Test
+    public void testBufferedElementsAreSplit() throws Exception {
+        List<Integer> range = IntStream.range(0, 100_000)
+                .boxed().collect(Collectors.toList());
+
+        ConcurrentSpliterator<Integer> concurrentSpliterator = ConcurrentSpliterator.create(
+                Integer.MAX_VALUE,
+                range::spliterator
+        );
+        concurrentSpliterator.get().forEachRemaining(integer -> {
+        });
+
+        Spliterator<Integer> spliterator = concurrentSpliterator.get();
+        assertThat(spliterator.estimateSize()).isEqualTo(100_000);
+        Spliterator<Integer> prefix = spliterator.trySplit();
+        assertThat(prefix).isNotNull();
+        assertThat(prefix.estimateSize()).isEqualTo(50_000);
+        assertThat(prefix.hasCharacteristics(Spliterator.SUBSIZED)).isTrue();
+
+        assertThat(StreamSupport.stream(concurrentSpliterator.get(), true).collect(Collectors.toList()))
+                .isEqualTo(range);
+    }
+
+    @Test
+    public void testReadersContinuePastTheLimit() throws Exception {
+        List<Integer> range = IntStream.rangeClosed(1, 100)
+                .boxed().collect(Collectors.toList());
+
+        ConcurrentSpliterator<Integer> concurrentSpliterator = ConcurrentSpliterator.create(
+                10,
+                range::spliterator
+        );
+
+        assertThat(StreamSupport.stream(concurrentSpliterator.get(), false).collect(Collectors.toList()))
+                .containsExactlyElementsOf(range);
+        assertThat(concurrentSpliterator.size()).isEqualTo(10);
+    }
+
+    @Test
+    public void testSpilledElementsAreReadFromDisk() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        List<DataPoint> data = TestHelpers.createData(1000);
+        Path directory = folder.newFolder().toPath();
+
+        try (ConcurrentSpliterator<DataPoint> concurrentSpliterator = ConcurrentSpliterator.create(
+                100, directory, ConcurrentSpliterator.Codec.dataPoints(),
+                () -> {
+                    reads.incrementAndGet();
+                    return data.spliterator();
+                }
+        )) {
+            List<Future<List<DataPoint>>> results = Lists.newArrayList();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                for (int i = 0; i < 4; i++) {
+                    results.add(executor.submit(() -> StreamSupport.stream(concurrentSpliterator.get(), false)
+                            .collect(Collectors.toList())));
+                }
+                for (Future<List<DataPoint>> result : results) {
+                    assertThat(result.get()).containsExactlyElementsOf(data);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // A late reader replays from the buffer and the file.
+            assertThat(StreamSupport.stream(concurrentSpliterator.get(), false).collect(Collectors.toList()))
+                    .containsExactlyElementsOf(data);
+            assertThat(reads.get()).isEqualTo(1);
+            assertThat(concurrentSpliterator.size()).isEqualTo(1000);
+            assertThat(Files.list(directory).count()).isEqualTo(1);
+        }
+        assertThat(Files.list(directory).count()).isEqualTo(0);
+    }
 }
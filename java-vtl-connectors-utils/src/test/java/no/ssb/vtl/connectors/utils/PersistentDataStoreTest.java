@@ -0,0 +1,117 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import no.ssb.vtl.model.DataPoint;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentDataStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static ColumnarData createColumnarData() {
+        ColumnarData.Builder builder = ColumnarData.builder();
+        TestHelpers.createTypedData().forEach(builder::add);
+        return builder.build(TestHelpers.TYPED_STRUCTURE);
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PersistentDataStore store = new PersistentDataStore(directory, Duration.ofHours(1));
+        store.put("test", "", createColumnarData());
+        store.put("test", "value DESC", createColumnarData());
+        TestHelpers.await(() -> store.contains("test", "") && store.contains("test", "value DESC"));
+
+        PersistentDataStore restarted = new PersistentDataStore(directory, Duration.ofHours(1));
+        assertThat(restarted.size()).isEqualTo(2);
+        List<DataPoint> data = restarted.getIfPresent("test", "").stream().collect(toList());
+        assertThat(data).containsExactlyElementsOf(TestHelpers.createTypedData());
+        assertThat(restarted.getIfPresent("other", "")).isNull();
+    }
+
+    @Test
+    public void testValidatorsSurviveRestart() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Validators validators = Validators.create("\"v1\"", Instant.ofEpochSecond(1000));
+        PersistentDataStore store = new PersistentDataStore(directory, Duration.ofHours(1));
+        store.put("test", "", createColumnarData(), validators);
+        store.put("other", "", createColumnarData(), Validators.create(null, Instant.ofEpochSecond(2000)));
+        store.put("none", "", createColumnarData());
+        store.flush();
+
+        PersistentDataStore restarted = new PersistentDataStore(directory, Duration.ofHours(1));
+        assertThat(restarted.getValidators("test", "")).contains(validators);
+        assertThat(restarted.getValidators("other", ""))
+                .contains(Validators.create(null, Instant.ofEpochSecond(2000)));
+        assertThat(restarted.getValidators("none", "")).isEmpty();
+        assertThat(restarted.getValidators("missing", "")).isEmpty();
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Instant now = Instant.now();
+        PersistentDataStore store = new PersistentDataStore(directory, Duration.ofMinutes(10),
+                Clock.fixed(now, ZoneOffset.UTC));
+        store.put("test", "", createColumnarData());
+        TestHelpers.await(() -> store.contains("test", ""));
+
+        PersistentDataStore later = new PersistentDataStore(directory, Duration.ofMinutes(10),
+                Clock.fixed(now.plus(Duration.ofMinutes(11)), ZoneOffset.UTC));
+        assertThat(later.contains("test", "")).isFalse();
+        assertThat(later.getIfPresent("test", "")).isNull();
+        assertThat(directory.toFile().list((dir, name) -> name.endsWith(".vtlc"))).isEmpty();
+    }
+
+    @Test
+    public void testInvalidateCancelsQueuedWrites() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PersistentDataStore store = new PersistentDataStore(directory, Duration.ofHours(1));
+        store.put("test", "", createColumnarData());
+        store.put("test", "value DESC", createColumnarData());
+        store.put("other", "", createColumnarData());
+        store.invalidate("test");
+        store.flush();
+
+        assertThat(store.contains("test", "")).isFalse();
+        assertThat(store.contains("test", "value DESC")).isFalse();
+
+        PersistentDataStore restarted = new PersistentDataStore(directory, Duration.ofHours(1));
+        assertThat(restarted.size()).isEqualTo(1);
+        assertThat(restarted.contains("other", "")).isTrue();
+        assertThat(directory.toFile().list((dir, name) -> name.endsWith(".vtlc"))).hasSize(1);
+    }
+}
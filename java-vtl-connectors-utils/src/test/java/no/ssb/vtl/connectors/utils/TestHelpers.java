@@ -0,0 +1,125 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+
+import com.google.common.base.Ticker;
+import no.ssb.vtl.model.Component;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.DataStructure;
+import no.ssb.vtl.model.VTLObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Data and helpers shared by the tests of this package.
+ */
+final class TestHelpers {
+
+    /**
+     * A structure with a column of each type, see {@link #createTypedData()}.
+     */
+    static final DataStructure TYPED_STRUCTURE = DataStructure.builder()
+            .put("region", Component.Role.IDENTIFIER, String.class)
+            .put("code", Component.Role.IDENTIFIER, String.class)
+            .put("count", Component.Role.MEASURE, Long.class)
+            .put("value", Component.Role.MEASURE, Double.class)
+            .put("flag", Component.Role.ATTRIBUTE, Boolean.class)
+            .put("time", Component.Role.ATTRIBUTE, Instant.class)
+            .build();
+
+    private TestHelpers() {
+    }
+
+    /**
+     * Returns a data point of the given values.
+     */
+    static DataPoint point(Object... values) {
+        List<VTLObject> objects = new ArrayList<>();
+        for (Object value : values) {
+            objects.add(VTLObject.of(value));
+        }
+        return DataPoint.create(objects);
+    }
+
+    /**
+     * Returns a few data points of {@link #TYPED_STRUCTURE}, with null values in every column.
+     */
+    static List<DataPoint> createTypedData() {
+        return Arrays.asList(
+                point(null, "a", 1L, 1.5, true, Instant.ofEpochSecond(1)),
+                point("0101", "b", null, 2.5, false, null),
+                point("0301", "a", 3L, null, null, Instant.ofEpochSecond(3)),
+                point("0101", null, 4L, 4.5, true, Instant.ofEpochSecond(4))
+        );
+    }
+
+    /**
+     * Returns the given number of data points with a string identifier and a double measure.
+     */
+    static List<DataPoint> createData(int size) {
+        List<DataPoint> data = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            List<VTLObject> values = new ArrayList<>();
+            values.add(VTLObject.of("id" + i));
+            values.add(VTLObject.of((double) i));
+            data.add(DataPoint.create(values));
+        }
+        return data;
+    }
+
+    /**
+     * A ticker that only moves when advanced.
+     */
+    static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(Duration duration) {
+            nanos.addAndGet(duration.toNanos());
+        }
+    }
+
+    /**
+     * Waits up to five seconds for the condition to become true.
+     */
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("timed out").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+}
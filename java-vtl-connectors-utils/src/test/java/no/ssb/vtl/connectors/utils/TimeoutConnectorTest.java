@@ -0,0 +1,200 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import no.ssb.vtl.connectors.Connector;
+import no.ssb.vtl.model.DataPoint;
+import no.ssb.vtl.model.Dataset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TimeoutConnectorTest {
+
+    private TestHelpers.FakeTicker ticker;
+    private TimeoutScheduler scheduler;
+    private Connector connector;
+    private AtomicBoolean closed;
+
+    @Before
+    public void setUp() throws Exception {
+        ticker = new TestHelpers.FakeTicker();
+        scheduler = new TimeoutScheduler(Duration.ofMillis(1), 64, ticker);
+        closed = new AtomicBoolean(false);
+        Dataset dataset = mock(Dataset.class);
+        when(dataset.getData()).thenAnswer(invocation ->
+                TestHelpers.createData(1000).stream().onClose(() -> closed.set(true))
+        );
+        connector = mock(Connector.class);
+        when(connector.getDataset(anyString())).thenReturn(dataset);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+    }
+
+    /**
+     * Move the time forward and run the timeouts that expired.
+     */
+    private void advance(Duration duration) {
+        ticker.advance(duration);
+        scheduler.advance();
+    }
+
+    @Test
+    public void testFirstRowTimeout() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .firstRowTimeout(Duration.ofMillis(50))
+                .scheduler(scheduler)
+                .ticker(ticker)
+                .build();
+
+        Stream<DataPoint> data = timeoutConnector.getDataset("test").getData();
+        advance(Duration.ofMillis(40));
+        assertThat(closed.get()).isFalse();
+        advance(Duration.ofMillis(20));
+        assertThat(closed.get()).isTrue();
+    }
+
+    @Test
+    public void testNoCheckAfterFirstRow() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .firstRowTimeout(Duration.ofMillis(20))
+                .scheduler(scheduler)
+                .ticker(ticker)
+                .build();
+
+        Iterator<DataPoint> data = timeoutConnector.getDataset("test").getData().iterator();
+        data.next();
+        advance(Duration.ofMillis(30));
+        assertThat(scheduler.getFiredCount()).isEqualTo(1);
+        advance(Duration.ofSeconds(1));
+
+        assertThat(scheduler.getScheduledCount()).isEqualTo(1);
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+        assertThat(closed.get()).isFalse();
+    }
+
+    @Test
+    public void testNoWatchWithoutStreamPolicy() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .callTimeout(Duration.ofSeconds(10))
+                .scheduler(scheduler)
+                .build();
+
+        try (Stream<DataPoint> data = timeoutConnector.getDataset("test").getData()) {
+            assertThat(data.count()).isEqualTo(1000);
+        }
+        assertThat(scheduler.getScheduledCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testIdleTimeoutIsResetByEachDataPoint() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .idleTimeout(Duration.ofMillis(100))
+                .scheduler(scheduler)
+                .ticker(ticker)
+                .build();
+
+        Iterator<DataPoint> data = timeoutConnector.getDataset("test").getData().iterator();
+        for (int i = 0; i < 20; i++) {
+            data.next();
+            advance(Duration.ofMillis(20));
+        }
+        assertThat(closed.get()).isFalse();
+        assertThat(scheduler.getFiredCount()).isGreaterThan(0);
+
+        advance(Duration.ofMillis(100));
+        assertThat(closed.get()).isTrue();
+    }
+
+    @Test
+    public void testMinimumThroughput() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .minimumThroughput(1000, Duration.ofMillis(50))
+                .scheduler(scheduler)
+                .ticker(ticker)
+                .build();
+
+        // 50 data points per window are needed, 3 arrive in the first one.
+        Iterator<DataPoint> data = timeoutConnector.getDataset("test").getData().iterator();
+        for (int i = 0; i < 2; i++) {
+            data.next();
+            advance(Duration.ofMillis(20));
+        }
+        assertThat(closed.get()).isFalse();
+        data.next();
+        advance(Duration.ofMillis(20));
+        assertThat(closed.get()).isTrue();
+    }
+
+    @Test
+    public void testClosedStreamCancelsTheTimeout() throws Exception {
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .timeout(Duration.ofSeconds(10))
+                .scheduler(scheduler)
+                .build();
+
+        try (Stream<DataPoint> data = timeoutConnector.getDataset("test").getData()) {
+            assertThat(data.count()).isEqualTo(1000);
+        }
+        assertThat(scheduler.getCancelledCount()).isEqualTo(1);
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCallTimeout() throws Exception {
+        Dataset slow = mock(Dataset.class);
+        when(slow.getDataStructure()).thenAnswer(invocation -> {
+            Thread.sleep(10_000);
+            return null;
+        });
+        when(connector.getDataset("slow")).thenAnswer(invocation -> {
+            Thread.sleep(10_000);
+            return slow;
+        });
+        when(connector.getDataset("structure")).thenReturn(slow);
+        TimeoutConnector timeoutConnector = TimeoutConnector.builder(connector)
+                .callTimeout(Duration.ofMillis(50))
+                .build();
+
+        assertThatThrownBy(() -> timeoutConnector.getDataset("slow"))
+                .isInstanceOf(ConnectorTimeoutException.class);
+
+        Dataset dataset = timeoutConnector.getDataset("structure");
+        assertThatThrownBy(dataset::getDataStructure)
+                .isInstanceOf(UncheckedTimeoutException.class)
+                .hasCauseInstanceOf(ConnectorTimeoutException.class);
+    }
+}
@@ -0,0 +1,97 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TimeoutSchedulerTest {
+
+    @Test
+    public void testTimeoutsFireUnlessCancelled() throws Exception {
+        try (TimeoutScheduler scheduler = new TimeoutScheduler(Duration.ofMillis(1), 8)) {
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(2);
+            Runnable task = () -> {
+                fired.incrementAndGet();
+                latch.countDown();
+            };
+
+            scheduler.schedule(task, 5, TimeUnit.MILLISECONDS);
+            // More than one round of the wheel.
+            scheduler.schedule(task, 50, TimeUnit.MILLISECONDS);
+            TimeoutScheduler.Timeout cancelled = scheduler.schedule(task, 20, TimeUnit.MILLISECONDS);
+            assertThat(cancelled.cancel()).isTrue();
+            assertThat(cancelled.cancel()).isFalse();
+
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+            Thread.sleep(50);
+            assertThat(fired.get()).isEqualTo(2);
+            assertThat(scheduler.getScheduledCount()).isEqualTo(3);
+            assertThat(scheduler.getFiredCount()).isEqualTo(2);
+            assertThat(scheduler.getCancelledCount()).isEqualTo(1);
+            assertThat(scheduler.getPendingCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testTickerDrivenScheduler() throws Exception {
+        TestHelpers.FakeTicker ticker = new TestHelpers.FakeTicker();
+        try (TimeoutScheduler scheduler = new TimeoutScheduler(Duration.ofMillis(1), 8, ticker)) {
+            AtomicInteger fired = new AtomicInteger();
+            scheduler.schedule(fired::incrementAndGet, 5, TimeUnit.MILLISECONDS);
+            // More than one round of the wheel.
+            scheduler.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+
+            ticker.advance(Duration.ofMillis(4));
+            scheduler.advance();
+            assertThat(fired.get()).isEqualTo(0);
+
+            ticker.advance(Duration.ofMillis(2));
+            scheduler.advance();
+            assertThat(fired.get()).isEqualTo(1);
+
+            ticker.advance(Duration.ofMillis(40));
+            scheduler.advance();
+            assertThat(fired.get()).isEqualTo(1);
+
+            ticker.advance(Duration.ofMillis(10));
+            scheduler.advance();
+            assertThat(fired.get()).isEqualTo(2);
+            assertThat(scheduler.getPendingCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testClosedSchedulerRejectsTimeouts() throws Exception {
+        TimeoutScheduler scheduler = new TimeoutScheduler();
+        scheduler.close();
+        assertThatThrownBy(() -> scheduler.schedule(() -> {
+        }, 1, TimeUnit.SECONDS)).isInstanceOf(IllegalStateException.class);
+    }
+}
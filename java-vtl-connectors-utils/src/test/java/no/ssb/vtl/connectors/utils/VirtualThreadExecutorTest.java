@@ -0,0 +1,74 @@
+package no.ssb.vtl.connectors.utils;
+
+/*-
+ * ========================LICENSE_START=================================
+ * Java VTL Utility connectors
+ * %%
+ * Copyright (C) 2017 Statistics Norway and contributors
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * =========================LICENSE_END==================================
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VirtualThreadExecutorTest {
+
+    @Test
+    public void testConcurrencyIsLimited() throws Exception {
+        assertLimited(VirtualThreadExecutor.create("test-virtual", 3));
+        assertLimited(VirtualThreadExecutor.createPlatform("test-platform", 3));
+    }
+
+    @Test
+    public void testVirtualThreadsAreUsedWhenSupported() throws Exception {
+        VirtualThreadExecutor executor = VirtualThreadExecutor.create("test", 1);
+        assertThat(executor.isVirtual()).isEqualTo(VirtualThreadExecutor.isSupported());
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger daemon = new AtomicInteger();
+        executor.execute(() -> {
+            daemon.set(Thread.currentThread().isDaemon() ? 1 : 0);
+            done.countDown();
+        });
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        // Virtual threads are always daemon threads.
+        assertThat(daemon.get()).isEqualTo(1);
+    }
+
+    private static void assertLimited(VirtualThreadExecutor executor) throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maximum = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> {
+                maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ignored) {
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(maximum.get()).isEqualTo(3);
+    }
+}